@@ -0,0 +1,41 @@
+package com.aleadam;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Whole analyses of one image each, single threaded, run by several
+ * benchmark threads at once as the batch mode runs them. Compare with
+ * <code>-t 1</code> for the scaling over images rather than within one.
+ */
+@State(Scope.Benchmark)
+@Threads(4)
+public class ConcurrentBenchmark {
+	@Param({ "512", "1024", "2048" })
+	public int size;
+	@Param({ "8", "16", "32" })
+	public int depth;
+	@Param({ "none", "circle", "square" })
+	public String filter;
+
+	private ImageProcessor ip;
+	private PeakParameters params;
+
+	@Setup
+	public void setUp() {
+		ip = SyntheticImages.cellBorders(size, size, depth, 1);
+		params = new PeakParameters();
+		params.regionType = PeakParameters.parseRegionType(filter);
+	}
+
+	@Benchmark
+	public ImageProcessor analyze() {
+		return PeakAnalysis.analyze(ip, "", params, 1).peaks;
+	}
+}
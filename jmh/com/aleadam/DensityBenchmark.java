@@ -0,0 +1,65 @@
+package com.aleadam;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+/**
+ * The square and circle density filters on the peaks of a synthetic image.
+ */
+@State(Scope.Thread)
+public class DensityBenchmark {
+	@Param({ "512", "1024", "2048", "4096", "8192" })
+	public int size;
+	@Param({ "8", "16", "32" })
+	public int depth;
+	@Param({ "1", "5", "10", "20" })
+	public int region;
+	@Param({ "1", "2", "4" })
+	public int threads;
+
+	private ImageProcessor peaks;
+	private PeakMask mask;
+	private int density;
+	private ExecutorService pool;
+
+	@Setup
+	public void setUp() {
+		AllProfilesData data = new AllProfilesData(new ImagePlus("",
+				SyntheticImages.cellBorders(size, size, depth, 1)), "", 20, 1, 0);
+		peaks = data.process();
+		mask = data.getMask();
+		// At least 2, or the filters return at once
+		density = Math.max(2, Math.min(10, region * region));
+		// The pool outlives the runs, so thread creation is not measured
+		if (threads > 1)
+			pool = Executors.newFixedThreadPool(threads);
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (pool != null)
+			pool.shutdown();
+	}
+
+	@Benchmark
+	public ImageProcessor square() {
+		return DensityFilter.square(peaks, mask, region, density, threads,
+				pool);
+	}
+
+	@Benchmark
+	public ImageProcessor circle() {
+		return DensityFilter.circle(peaks, mask, region, density, threads,
+				pool);
+	}
+}
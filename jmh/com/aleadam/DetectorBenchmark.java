@@ -0,0 +1,50 @@
+package com.aleadam;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ij.ImagePlus;
+
+/**
+ * Peak detection of every row with a single {@link PeakDetector}, without
+ * the profile extraction, with the vector and the scalar {@link Kernels}.
+ */
+@State(Scope.Thread)
+public class DetectorBenchmark {
+	@Param({ "512", "1024", "2048", "4096", "8192" })
+	public int size;
+	@Param({ "8", "16", "32" })
+	public int depth;
+	@Param({ "2", "10", "20", "50", "100" })
+	public int peakWidth;
+	@Param({ "vector", "scalar" })
+	public String kernels;
+
+	private int[] profiles;
+	private PeakDetector detector;
+	private int[] positions;
+
+	@Setup
+	public void setUp() {
+		Kernels.setVectorized(kernels.equals("vector"));
+		AllProfilesData data = new AllProfilesData(new ImagePlus("",
+				SyntheticImages.cellBorders(size, size, depth, 1)), "",
+				peakWidth, 1, 0);
+		data.extract();
+		profiles = data.allPixelValues;
+		detector = new PeakDetector();
+		positions = detector.peakBuffer(size);
+	}
+
+	@Benchmark
+	public long detect() {
+		long peaks = 0;
+		for (int y = 0; y < size; y++)
+			peaks += detector.process(profiles, y * size, size, peakWidth, 1,
+					positions);
+		return peaks;
+	}
+}
@@ -0,0 +1,67 @@
+package com.aleadam;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+/**
+ * Extraction and detection of all profiles by {@link AllProfilesData}, on
+ * a pool of each size, to show how they scale with the thread count.
+ */
+@State(Scope.Thread)
+public class ProfilesBenchmark {
+	@Param({ "512", "1024", "2048", "4096", "8192" })
+	public int size;
+	@Param({ "8", "16", "32" })
+	public int depth;
+	@Param({ "2", "10", "20", "50", "100" })
+	public int peakWidth;
+	@Param({ "1", "2", "4" })
+	public int threads;
+
+	private ImagePlus imp;
+	private ExecutorService pool;
+
+	@Setup
+	public void setUp() {
+		imp = new ImagePlus("", SyntheticImages.cellBorders(size, size, depth, 1));
+		// The pool outlives the runs, so thread creation is not measured
+		if (threads > 1)
+			pool = Executors.newFixedThreadPool(threads);
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (pool != null)
+			pool.shutdown();
+	}
+
+	private AllProfilesData data() {
+		AllProfilesData data = new AllProfilesData(imp, "", peakWidth, 1, 0);
+		data.setThreads(threads);
+		data.setExecutor(pool);
+		return data;
+	}
+
+	/** Extraction alone; does not depend on the peak width. */
+	@Benchmark
+	public int[] extract() {
+		AllProfilesData data = data();
+		data.extract();
+		return data.allPixelValues;
+	}
+
+	@Benchmark
+	public ImageProcessor process() {
+		return data().process();
+	}
+}
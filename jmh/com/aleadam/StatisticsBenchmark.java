@@ -0,0 +1,48 @@
+package com.aleadam;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+/**
+ * The statistics of a peak image and the percentile getters of
+ * {@link AllProfilesData}.
+ */
+@State(Scope.Thread)
+public class StatisticsBenchmark {
+	@Param({ "512", "1024", "2048", "4096", "8192" })
+	public int size;
+	@Param({ "8", "16", "32" })
+	public int depth;
+
+	private AllProfilesData data;
+	private ImageProcessor peaks;
+
+	@Setup
+	public void setUp() {
+		data = new AllProfilesData(new ImagePlus("",
+				SyntheticImages.cellBorders(size, size, depth, 1)), "", 20, 1, 0);
+		peaks = data.process();
+	}
+
+	@Benchmark
+	public float peakStatistics() {
+		return new PeakStatistics((short[]) peaks.getPixels()).getPeakMedian();
+	}
+
+	@Benchmark
+	public void profileStatistics(Blackhole bh) {
+		for (int tenth = 0; tenth < 10; tenth++) {
+			bh.consume(data.getTenth(tenth));
+			bh.consume(data.getAverageBelow(tenth));
+		}
+		bh.consume(data.getPeakMedian());
+		bh.consume(data.getStDev());
+	}
+}
@@ -0,0 +1,73 @@
+package com.aleadam;
+
+import java.util.Random;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Images for the benchmarks.
+ */
+public class SyntheticImages {
+
+	/**
+	 * A synthetic image of cell borders: bright ridges along the edges of a
+	 * Voronoi tessellation of jittered seeds about 40 pixels apart, over a
+	 * noisy background, scaled to the range of the bit depth.
+	 */
+	public static ImageProcessor cellBorders(int width, int height, int depth,
+			long seed) {
+		Random random = new Random(seed);
+		int cell = 40;
+		int cols = width / cell + 1, rows = height / cell + 1;
+		float[] seedX = new float[cols * rows], seedY = new float[cols * rows];
+		for (int j = 0; j < rows; j++) {
+			for (int i = 0; i < cols; i++) {
+				seedX[j * cols + i] = (i + random.nextFloat()) * cell;
+				seedY[j * cols + i] = (j + random.nextFloat()) * cell;
+			}
+		}
+		float max = depth == 8 ? 255 : depth == 16 ? 65535 : 10000;
+		float[] pixels = new float[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				// Distance to the nearest and second nearest seed among the
+				// neighbouring cells
+				float d1 = Float.MAX_VALUE, d2 = Float.MAX_VALUE;
+				int ci = x / cell, cj = y / cell;
+				for (int j = Math.max(0, cj - 1); j <= Math.min(rows - 1, cj + 1); j++) {
+					for (int i = Math.max(0, ci - 1); i <= Math.min(cols - 1, ci + 1); i++) {
+						float dx = x - seedX[j * cols + i], dy = y - seedY[j * cols + i];
+						float d = dx * dx + dy * dy;
+						if (d < d1) {
+							d2 = d1;
+							d1 = d;
+						} else if (d < d2) {
+							d2 = d;
+						}
+					}
+				}
+				float edge = (float) (Math.sqrt(d2) - Math.sqrt(d1));
+				float ridge = (float) Math.exp(-edge * edge / 4);
+				float noise = (float) (0.1 + 0.05 * random.nextGaussian());
+				pixels[y * width + x] = Math.max(0, Math.min(1, 0.7f * ridge
+						+ noise)) * max;
+			}
+		}
+		ImageProcessor ip = new FloatProcessor(width, height, pixels, null);
+		if (depth == 8) {
+			byte[] bytes = new byte[pixels.length];
+			for (int i = 0; i < pixels.length; i++)
+				bytes[i] = (byte) pixels[i];
+			ip = new ByteProcessor(width, height, bytes, null);
+		} else if (depth == 16) {
+			short[] shorts = new short[pixels.length];
+			for (int i = 0; i < pixels.length; i++)
+				shorts[i] = (short) pixels[i];
+			ip = new ShortProcessor(width, height, shorts, null);
+		}
+		return ip;
+	}
+}
@@ -1,112 +1,190 @@
 import java.awt.AWTEvent;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FilenameUtils;
 
-import com.aleadam.AllProfilesData;
+import com.aleadam.BatchProcessor;
+import com.aleadam.MappedImage;
+import com.aleadam.Metrics;
+import com.aleadam.ParameterSweep;
+import com.aleadam.PeakAnalysis;
+import com.aleadam.PeakParameters;
+import com.aleadam.PeakStatistics;
+import com.aleadam.PeakTable;
+import com.aleadam.PreviewCache;
+import com.aleadam.ResultCache;
+import com.aleadam.ResultWriter;
+import com.aleadam.ShardCoordinator;
+import com.aleadam.StackProcessor;
+import com.aleadam.TiledProcessor;
+import com.aleadam.WatchProcessor;
 
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
-import ij.gui.OvalRoi;
-import ij.io.FileSaver;
+import ij.gui.WaitForUserDialog;
 import ij.io.SaveDialog;
+import ij.measure.ResultsTable;
 import ij.plugin.filter.ExtendedPlugInFilter;
 import ij.plugin.filter.PlugInFilterRunner;
-import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
-import ij.process.ShortProcessor;
 
 public class MultipleProfilePeaks implements ExtendedPlugInFilter,
 		DialogListener {
-	private static final String[] REGION_TYPES = new String[]{"Circle", "Square (faster)", "No filter"};
+	private static final String[] REGION_TYPES = PeakParameters.REGION_TYPES;
 	private static final int FLAGS = NO_UNDO | NO_CHANGES | DOES_8G | DOES_16
 			| DOES_32 | KEEP_PREVIEW;
 	
-	private int peakWidth = 20;
-	private float stringency = 3;
-	private int threshold = 0;
-	private int density = 10;
-	private int region = 5;
-	private int regionType = 2;
+	private PeakParameters params = new PeakParameters();
 	private String name;
 	private ImagePlus origImp, workingImp, resultImp;
 	private int maxInt;
 	private boolean needSave;
-	private Integer[] pixels;
 	private int channels;
-	private int channel = 0;
+	private boolean processStack;
+	private boolean logMetrics;
+	private boolean useResultCache;
+	private String resultCacheDir;
+	private long resultCacheMb;
+	private int[] channelRange, sliceRange, frameRange;
+	private PreviewCache cache = new PreviewCache();
+
+	// Preview runs in the background: slider events arriving within
+	// PREVIEW_DELAY are coalesced, and a newer request cancels older ones
+	private static final long PREVIEW_DELAY = 150;
+	private static final int APPROXIMATE_PIXELS = 2048 * 2048;
+	private volatile boolean previewing;
+	private volatile boolean approximatePreview = true;
+	private ScheduledExecutorService previewExecutor;
+	private ScheduledFuture<?> pendingPreview;
+	private final AtomicInteger previewGeneration = new AtomicInteger();
+	private PreviewCache approximateCache = new PreviewCache();
+	private ImagePlus approximateImp;
+	private int approximateIndex;
+	// The full size preview shown, if the last one published, and the
+	// parameters it was computed with
+	private PeakAnalysis previewResult;
+	private PeakParameters previewParams;
+	// The preview to keep as the result, set when the dialog is closed
+	private PeakAnalysis keptPreview;
 
 	public int setup(String arg, ImagePlus imp) {
 		if (arg.equals("about")) {
 			showAbout();
 			return DONE;
 		}
+		if (arg.equals("batch")) {
+			runBatch();
+			return DONE;
+		}
+		if (arg.equals("tiled")) {
+			runTiled();
+			return DONE;
+		}
+		if (arg.equals("watch")) {
+			runWatch();
+			return DONE;
+		}
+		if (arg.equals("sweep")) {
+			if (imp == null)
+				IJ.noImage();
+			else
+				runSweep(imp);
+			return DONE;
+		}
 		origImp = imp;
 		workingImp = imp.duplicate();
 		maxInt = (int) workingImp.getProcessor().getMax();
 		name = origImp.getTitle();
-		channels = origImp.getStackSize();
+		channels = origImp.getNChannels();
 		return FLAGS;
 	}
 
 	public int showDialog(ImagePlus imp, String command, PlugInFilterRunner pfr) {
 		GenericDialog gd = new GenericDialog("Peak detection settings:");
-		gd.addSlider("Peak width (2-100)", 2, 100, 20);
-		gd.addSlider("Stringency (0.05-4.99)", 0.05, 4.99, 1.0);
+		gd.addSlider("Peak width (2-100)", 2, 100,
+				PeakParameters.DEFAULT_PEAK_WIDTH);
+		gd.addSlider("Stringency (0.05-4.99)", 0.05, 4.99,
+				PeakParameters.DEFAULT_STRINGENCY);
 		gd.addSlider("Threshold (0-" + maxInt + ")", 0, maxInt, maxInt / 20);
-		gd.addSlider("Density requirement (1-50)", 1, 50, 1);
-		gd.addSlider("region size (1-20)", 1, 20, 5);
-		gd.addChoice("Region type:", REGION_TYPES, REGION_TYPES[2]);
-		gd.addSlider("Channel: (1-" + channels + ")", 1, channels, 1);
+		gd.addSlider("Density requirement (1-50)", 1, 50,
+				PeakParameters.DEFAULT_DENSITY);
+		gd.addSlider("region size (1-20)", 1, 20, PeakParameters.DEFAULT_REGION);
+		gd.addChoice("Region type:", REGION_TYPES,
+				REGION_TYPES[PeakParameters.DEFAULT_REGION_TYPE]);
+		gd.addSlider("Channel: (1-" + channels + ")", 1, channels,
+				PeakParameters.DEFAULT_CHANNEL);
+		gd.addCheckbox("Process whole stack (preview shows the channel above)", false);
+		gd.addStringField("Channels:", "1-" + origImp.getNChannels());
+		gd.addStringField("Slices:", "1-" + origImp.getNSlices());
+		gd.addStringField("Frames:", "1-" + origImp.getNFrames());
+		gd.addCheckbox("Fast approximate preview on large images", true);
+		gd.addCheckbox("Log stage timings", false);
+		gd.addCheckbox("Reuse results saved on disk", false);
+		ResultCache defaultCache = ResultCache.getDefault();
+		gd.addStringField("Result cache directory:", defaultCache
+				.getDirectory().getPath(), 30);
+		gd.addNumericField("Result cache size (MB)",
+				defaultCache.getMaxBytes() >> 20, 0);
 		gd.addPreviewCheckbox(pfr);
 		gd.addDialogListener(this);
+		previewExecutor = Executors.newSingleThreadScheduledExecutor();
+		previewing = true;
 		gd.showDialog();
+		stopPreview();
+		try {
+			// Until then the preview thread may still publish a result
+			previewExecutor.awaitTermination(Long.MAX_VALUE,
+					TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return DONE;
+		}
 		if (gd.wasCanceled())
 			return DONE;
 		needSave = gd.wasOKed();
-		return FLAGS;
+		if (useResultCache)
+			ResultCache.setDefault(new File(resultCacheDir), resultCacheMb);
+		// A finished preview of the final parameters is the result. The
+		// runner still calls run(), since this filter leaves the image
+		// unchanged, but it then shows and saves it without recomputing.
+		if (previewResult != null && params.equals(previewParams)) {
+			keptPreview = previewResult;
+			return FLAGS;
+		}
+		return FLAGS & ~KEEP_PREVIEW;
 	}
 
 	public boolean dialogItemChanged(GenericDialog gd, AWTEvent ev) {
 		if (resultImp != null && resultImp.getProcessor() == null)
 			return false;
 
-		peakWidth = (int) gd.getNextNumber();
-		stringency = (float) gd.getNextNumber();
-		threshold = (int) gd.getNextNumber();
-		density = (int) gd.getNextNumber();
-		region = (int) gd.getNextNumber();
-		regionType = gd.getNextChoiceIndex();
-		channel = (int) gd.getNextNumber();
-
-		if (peakWidth < 2)
-			peakWidth = 2;
-		if (peakWidth > 100)
-			peakWidth = 100;
-		if (stringency < 0.05)
-			stringency = 0.05F;
-		if (stringency > 4.99)
-			stringency = 4.99F;
-		if (threshold < 0)
-			threshold = 0;
-		if (threshold > maxInt)
-			threshold = maxInt;
-		if (region < 1)
-			region = 1;
-		if (region > 20)
-			region = 20;
-		if (density < 1)
-			density = 1;
-		if (density > 50 || density > region * region)
-			density = Math.min(50, region * region);
+		params.readFields(gd);
+		params.validate(maxInt);
+		if (params.channel > channels)
+			params.channel = channels;
+		processStack = gd.getNextBoolean();
+		channelRange = parseRange(gd.getNextString(), origImp.getNChannels());
+		sliceRange = parseRange(gd.getNextString(), origImp.getNSlices());
+		frameRange = parseRange(gd.getNextString(), origImp.getNFrames());
+		if (channelRange == null || sliceRange == null || frameRange == null)
+			return false;
+		approximatePreview = gd.getNextBoolean();
+		logMetrics = gd.getNextBoolean();
+		useResultCache = gd.getNextBoolean();
+		resultCacheDir = gd.getNextString().trim();
+		resultCacheMb = Math.max(1, (long) gd.getNextNumber());
+		if (resultCacheDir.length() == 0)
+			return false;
 
 		return true;
 	}
@@ -115,183 +193,176 @@ public class MultipleProfilePeaks implements ExtendedPlugInFilter,
 	}
 
 	public void run(ImageProcessor origIP) {
-		
-		ImageProcessor selectedIP = origImp.getStack().getProcessor(channel);
-		ImageStack selectedStack = new ImageStack(selectedIP.getWidth(), selectedIP.getHeight());
-		selectedStack.addSlice("1", selectedIP);
-		ImagePlus selectedImp = new ImagePlus(name + " channel: " + channel, selectedStack);
-		name = FilenameUtils.getBaseName(name) + " - channel " + channel; 
-
-		AllProfilesData pd = new AllProfilesData(selectedImp, name, peakWidth,
-				stringency, threshold);
-		ImageProcessor ip = pd.process();
-		if (regionType == 0) {
-			ip = densityFilterCircle(ip);
-		} else if (regionType == 1) {
-			ip = densityFilterSquare(ip);
+		if (previewing) {
+			schedulePreview(params.copy());
+			return;
 		}
-
-		if (resultImp == null) {
-			ImageStack stack = new ImageStack(ip.getWidth(), ip.getHeight());
-			stack.addSlice("1", ip);
-			resultImp = new ImagePlus(name + " edges", stack);
-			resultImp.show();
-		} else {
-			short[] orig = (short[]) ip.getPixels();
-			short[] dest = (short[]) resultImp.getProcessor().getPixels();
-			for (int i = 0; i < orig.length; i++) {
-				dest[i] = orig[i];
-			}
-			resultImp.updateAndDraw();
+		if (logMetrics) {
+			// Time every stage, not only those the preview left to compute
+			cache.clear();
+			Metrics.reset();
+			Metrics.setEnabled(true);
 		}
-
-		if (needSave)
-			save(pd);
-	}
-
-	private ImageProcessor densityFilterSquare(ImageProcessor ip) {
-		ImageProcessor ip2 = new ShortProcessor(ip.getWidth(), ip.getHeight());
-
-		if (density == 1)
-			return ip;
-
-		for (int i = region; i < ip.getWidth() - region; i++) {
-			for (int j = region; j < ip.getHeight() - region; j++) {
-				int count = 0;
-				for (int k = -region; k < region; k++) {
-					for (int l = -region; l < region; l++) {
-						if (ip.getPixel(i + k, j + l) > 0)
-							count++;
+		try {
+			if (needSave && processStack) {
+				runStack();
+				return;
+			}
+			int channel = params.channel;
+			name = FilenameUtils.getBaseName(origImp.getTitle()) + " - channel " + channel; 
+
+			// A result of the same pixels and settings kept on disk is read
+			// back; otherwise only the stages downstream of the changed
+			// parameters are recomputed
+			ResultCache resultCache = useResultCache ? ResultCache.getDefault()
+					: null;
+			String key = null;
+			// Every stage is timed again for the metrics
+			PeakAnalysis result = logMetrics ? null : keptPreview;
+			keptPreview = null;
+			if (result == null && resultCache != null) {
+				key = ResultCache.key(origImp.getStack().getProcessor(
+						params.stackIndex(origImp)), params);
+				result = resultCache.get(key);
+			}
+			if (result == null) {
+				result = cache.update(origImp, name, params, Prefs.getThreads());
+				if (resultCache != null) {
+					try {
+						resultCache.put(key, result);
+					} catch (IOException e) {
+						IJ.log("Cannot cache " + name + ": " + e);
 					}
 				}
-				if (count >= density)
-					ip2.putPixel(i, j, ip.getPixel(i, j));
 			}
-		}
-		return ip2;
-	}
+			previewGeneration.incrementAndGet();
+			show(result.peaks, name);
 
-	private ImageProcessor densityFilterCircle(ImageProcessor ip) {
-		ImageProcessor tmpIP = ip.duplicate();
-		ImageProcessor ip2 = new ShortProcessor(ip.getWidth(), ip.getHeight());
-		int radius = region;
-		OvalRoi roi = new OvalRoi(0, 0, 2 * radius, 2 * radius);
-		tmpIP.setRoi(roi);
-
-		if (density == 1)
-			return ip;
-
-		for (int i = 0; i < ip.getWidth() - 2 * radius; i++) {
-			for (int j = 0; j < ip.getHeight() - 2 * radius; j++) {
-				roi.setLocation(i, j);
-				ImageProcessor mask = tmpIP.getMask();
-				int count = 0;
-				for (int k = 0; k < 2 * radius; k++) {
-					for (int l = 0; l < 2 * radius; l++) {
-						if (mask.getPixel(k, l) > 0
-								&& ip.getPixel(i + k, j + l) > 0) {
-							count++;
-						}
-					}
-				}
-				if (count >= density) {
-					ip2.putPixel(i + radius, j + radius,
-							ip.getPixel(i + radius, j + radius));
-				}
+			if (needSave) {
+				save(result);
+				cache.clear();
+			}
+		} finally {
+			if (logMetrics) {
+				Metrics.setEnabled(false);
+				Metrics.log();
+				Metrics.toResultsTable().show(name + " metrics");
 			}
 		}
-		return ip2;
 	}
 
-	private void pruneImage() {
-		short[] imagePixels = (short[]) resultImp.getProcessor().getPixels();
-		ArrayList<Integer> pixArray = new ArrayList<Integer>();
-		for (int i = 0; i < imagePixels.length; i++) {
-			if (imagePixels[i] > 0) {
-				pixArray.add((int)imagePixels[i]);
+	private synchronized void schedulePreview(final PeakParameters p) {
+		// A last event may arrive as the dialog closes
+		if (previewExecutor.isShutdown())
+			return;
+		cancelPreview();
+		final int generation = previewGeneration.incrementAndGet();
+		pendingPreview = previewExecutor.schedule(new Runnable() {
+			public void run() {
+				computePreview(p, generation);
 			}
-		}
-		pixels = pixArray.toArray(new Integer[pixArray.size()]);
+		}, PREVIEW_DELAY, TimeUnit.MILLISECONDS);
 	}
 
-	public float getPeakAverage() {
-		float peakAverage = 0;
-		for (int i = 0; i < pixels.length; i++) {
-			peakAverage += pixels[i];
-		}
-		return peakAverage /= pixels.length;
+	/**
+	 * Stops the preview thread once it has finished or been cancelled, with
+	 * no preview scheduled after.
+	 */
+	private synchronized void stopPreview() {
+		previewing = false;
+		cancelPreview();
+		previewExecutor.shutdownNow();
 	}
 
-	public int getPeakCount() {
-		return pixels.length;
+	private synchronized void cancelPreview() {
+		if (pendingPreview != null)
+			pendingPreview.cancel(true);
+		pendingPreview = null;
 	}
 
-	public float getPeakMedian() {
-		Integer[] sortedPixels = pixels.clone();
-		Arrays.sort(sortedPixels);
-		if (sortedPixels.length % 2 == 0) {
-			return (sortedPixels[(sortedPixels.length / 2) - 1] + sortedPixels[sortedPixels.length / 2]) / 2;
-		} else {
-			return sortedPixels[sortedPixels.length / 2];
+	/**
+	 * Runs on the preview thread. Large images are first analyzed at half
+	 * size for a quick approximation, then at full size. Results are shown
+	 * only if no newer preview was requested meanwhile.
+	 */
+	private void computePreview(PeakParameters p, int generation) {
+		String previewName = FilenameUtils.getBaseName(origImp.getTitle())
+				+ " - channel " + p.channel;
+		try {
+			if (approximatePreview
+					&& (long) origImp.getWidth() * origImp.getHeight() > APPROXIMATE_PIXELS) {
+				publish(approximate(p, previewName), previewName, generation,
+						null, null);
+			}
+			PeakAnalysis result = cache.update(origImp, previewName, p,
+					Prefs.getThreads());
+			publish(result.peaks, previewName, generation, p, result);
+		} catch (RuntimeException e) {
+			// Cancelled by a newer preview, or by closing the dialog
+			if (generation == previewGeneration.get() && previewing)
+				IJ.handleException(e);
 		}
 	}
 
-	private float getVariance() {
-		float var = 0;
-		float peakAverage = getPeakAverage();
-		for (int i = 0; i < pixels.length; i++) {
-			var += (pixels[i] - peakAverage) * (pixels[i] - peakAverage);
+	private ImageProcessor approximate(PeakParameters p, String previewName) {
+		int width = origImp.getWidth();
+		int height = origImp.getHeight();
+		int index = p.stackIndex(origImp);
+		if (approximateImp == null || approximateIndex != index) {
+			ImageProcessor ip = origImp.getStack().getProcessor(index);
+			approximateImp = new ImagePlus(previewName, ip.resize(width / 2,
+					height / 2));
+			approximateIndex = index;
+			approximateCache.clear();
 		}
-		return var / (pixels.length - 1);
+		PeakParameters half = p.copy();
+		half.channel = 1;
+		half.peakWidth = Math.max(2, p.peakWidth / 2);
+		half.region = Math.max(1, p.region / 2);
+		half.density = Math.max(1, p.density / 4);
+		ImageProcessor peaks = approximateCache.update(approximateImp,
+				previewName, half, Prefs.getThreads()).peaks.duplicate();
+		peaks.setInterpolationMethod(ImageProcessor.NONE);
+		return peaks.resize(width, height);
 	}
 
-	public float getStDev() {
-		return (float) Math.sqrt(getVariance());
-	}
-
-	public float getMaxPeak() {
-		float max = 0;
-		for (int i = 0; i < pixels.length; i++) {
-			max = max > pixels[i] ? max : pixels[i];
-		}
-		return max;
+	/**
+	 * @param result
+	 *            the full size analysis shown, or null for an approximation
+	 */
+	private synchronized void publish(ImageProcessor ip, String title,
+			int generation, PeakParameters p, PeakAnalysis result) {
+		if (generation != previewGeneration.get())
+			return;
+		show(ip, title);
+		previewParams = p;
+		previewResult = result;
 	}
 
-	public float getMinPeak() {
-		float min = Float.MAX_VALUE;
-		for (int i = 0; i < pixels.length; i++) {
-			min = min < pixels[i] ? min : pixels[i];
+	private synchronized void show(ImageProcessor ip, String title) {
+		if (resultImp == null) {
+			ImageStack stack = new ImageStack(ip.getWidth(), ip.getHeight());
+			// A copy, since the cache keeps the returned image
+			stack.addSlice("1", ip.duplicate());
+			resultImp = new ImagePlus(title + " edges", stack);
+			resultImp.show();
+		} else {
+			short[] orig = (short[]) ip.getPixels();
+			short[] dest = (short[]) resultImp.getProcessor().getPixels();
+			System.arraycopy(orig, 0, dest, 0, orig.length);
+			resultImp.updateAndDraw();
 		}
-		return min;
 	}
 
-	public void save(AllProfilesData pd) {
+	public void save(PeakAnalysis result) {
+		int maxPeak = result.maxPeak;
 		try {
 			SaveDialog sdImg = new SaveDialog("Save peak image as...", "",
 					name, ".tif");
 			if (sdImg.getDirectory() != null) {
 				String saveNameImg = sdImg.getDirectory() + sdImg.getFileName();
-				File fileImg = new File(saveNameImg);
-				if (!fileImg.exists()) {
-					fileImg.createNewFile();
-				}
-
-				ImageProcessor bp = new ByteProcessor (resultImp.getWidth(), resultImp.getHeight());
-				ImageProcessor rip = resultImp.getProcessor();
-				int maxValue = pd.getMaxPeak();
-				for (int i=0; i<resultImp.getWidth(); i++) {
-					for (int j=0; j<resultImp.getHeight(); j++) {
-						bp.putPixel(i, j, 255*rip.getPixel(i, j)/maxValue);
-					}
-				}
-				ImageStack stack = new ImageStack(bp.getWidth(), bp.getHeight());
-				stack.addSlice("1", bp);
-				ImagePlus resultImpByte = new ImagePlus(name + " edges", stack);
-				
-				FileSaver fs = new FileSaver(resultImpByte);
-
-//				FileSaver fs = new FileSaver(resultImp);
-				fs.saveAsTiff(saveNameImg);
+				ResultWriter.saveImage(resultImp.getProcessor(), maxPeak,
+						saveNameImg);
 			}
 
 			SaveDialog sdData = new SaveDialog("Save data as...", "",
@@ -299,56 +370,82 @@ public class MultipleProfilePeaks implements ExtendedPlugInFilter,
 			if (sdData.getDirectory() != null) {
 				String saveNameData = sdData.getDirectory()
 						+ sdData.getFileName();
-				File fileData = new File(saveNameData);
-				if (!fileData.exists()) {
-					fileData.createNewFile();
+				ResultWriter.saveData(resultImp.getProcessor(), maxPeak,
+						params, saveNameData);
+				saveMetrics(saveNameData);
+			}
+
+			SaveDialog sdTable = new SaveDialog("Save peak table as...", "",
+					name + " peaks", ".csv");
+			if (sdTable.getDirectory() != null) {
+				// Results read from the disk cache have no per-peak data, so
+				// the peaks are detected again
+				if (result.data == null) {
+					IJ.showStatus("Detecting peaks for the table...");
+					result = cache.update(origImp, name, params,
+							Prefs.getThreads());
 				}
+				ResultWriter.savePeakTable(PeakTable.create(result.data,
+						result.peaks), sdTable.getDirectory()
+						+ sdTable.getFileName());
+			}
+		} catch (IOException e) {
+			IJ.showMessage("Error saving file!",
+					"Please check that the file is not in use and try running the plugin again.");
+		}
+	}
+
+	/**
+	 * Processes the selected channels, slices and frames in parallel, shows
+	 * the peak stack and the statistics of each plane, and saves both.
+	 */
+	private void runStack() {
+		name = FilenameUtils.getBaseName(origImp.getTitle());
+		StackProcessor sp = new StackProcessor(origImp, params);
+		sp.setRange(channelRange[0], channelRange[1], sliceRange[0],
+				sliceRange[1], frameRange[0], frameRange[1]);
+		ImagePlus stackImp;
+		try {
+			stackImp = sp.run(name + " edges");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		if (resultImp != null)
+			resultImp.close();
+		resultImp = stackImp;
+		resultImp.show();
+
+		ResultsTable rt = new ResultsTable();
+		for (StackProcessor.Slice s : sp.getSlices()) {
+			PeakStatistics stats = s.stats;
+			rt.incrementCounter();
+			rt.addValue("Channel", s.channel);
+			rt.addValue("Slice", s.slice);
+			rt.addValue("Frame", s.frame);
+			rt.addValue("Peaks", stats.getPeakCount());
+			rt.addValue("Average", stats.getPeakAverage());
+			rt.addValue("StDev", stats.getStDev());
+			rt.addValue("Median", stats.getPeakMedian());
+			rt.addValue("Min", stats.getMinPeak());
+			rt.addValue("Max", s.maxPeak);
+		}
+		rt.show(name + " peaks");
 
-				BufferedWriter writer;
-				FileWriter fw = new FileWriter(fileData.getAbsoluteFile());
-				writer = new BufferedWriter(fw);
-
-				pruneImage();
-
-				writer.write("******************************************");
-				writer.newLine();
-				writer.write("PEAK STATISTICS:");
-				writer.newLine();
-				writer.newLine();
-				writer.write("Average peak intensity: ," + getPeakAverage());
-				writer.newLine();
-				writer.write("Peak Standard deviation: ," + getStDev());
-				writer.newLine();
-				writer.write("Total number of peaks: ," + getPeakCount());
-				writer.newLine();
-				writer.write("Peak median: ," + getPeakMedian());
-				writer.newLine();
-				writer.write("Peak range: ," + getMinPeak() + " - "
-						+ pd.getMaxPeak());
-				writer.newLine();
-				writer.newLine();
-
-				writer.write("******************************************");
-				writer.newLine();
-				writer.write("SETTINGS:");
-				writer.newLine();
-				writer.newLine();
-				writer.write("Peak width setting: ," + peakWidth);
-				writer.newLine();
-				writer.write("Stringency: ," + stringency);
-				writer.newLine();
-				writer.write("Threshold: ," + threshold);
-				writer.newLine();
-				writer.write("Density filter used: ," + REGION_TYPES[regionType]);
-				writer.newLine();
-				writer.write("Minimum density: ," + density);
-				writer.newLine();
-				writer.write("Region size: ," + region);
-				writer.newLine();
-				writer.write("******************************************");
-
-				writer.flush();
-				writer.close();
+		try {
+			SaveDialog sdImg = new SaveDialog("Save peak stack as...", "",
+					name, ".tif");
+			if (sdImg.getDirectory() != null) {
+				ResultWriter.saveStack(resultImp, sp.getMaxPeak(),
+						sdImg.getDirectory() + sdImg.getFileName());
+			}
+			SaveDialog sdData = new SaveDialog("Save data as...", "", name,
+					".csv");
+			if (sdData.getDirectory() != null) {
+				String saveNameData = sdData.getDirectory()
+						+ sdData.getFileName();
+				ResultWriter.saveStackData(sp, params, saveNameData);
+				saveMetrics(saveNameData);
 			}
 		} catch (IOException e) {
 			IJ.showMessage("Error saving file!",
@@ -356,6 +453,266 @@ public class MultipleProfilePeaks implements ExtendedPlugInFilter,
 		}
 	}
 
+	/**
+	 * Saves the stage timings as JSON next to the data file, if enabled.
+	 */
+	private void saveMetrics(String dataPath) throws IOException {
+		if (logMetrics)
+			Metrics.save(FilenameUtils.removeExtension(dataPath)
+					+ " metrics.json");
+	}
+
+	/**
+	 * Parses "a-b" or "a" into an inclusive range within 1 to max, or returns
+	 * null if the text is not a range.
+	 */
+	private static int[] parseRange(String text, int max) {
+		try {
+			String[] parts = text.trim().split("-");
+			int from = Integer.parseInt(parts[0].trim());
+			int to = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : from;
+			from = Math.max(1, Math.min(max, from));
+			to = Math.max(from, Math.min(max, to));
+			return new int[] { from, to };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Processes a whole directory with {@link BatchProcessor}, or with a
+	 * {@link ShardCoordinator} shared with other processes. The dialog
+	 * reads macro options, so it can be recorded and run headless.
+	 */
+	private void runBatch() {
+		GenericDialog gd = new GenericDialog("Batch peak detection:");
+		gd.addStringField("Input directory:", "", 30);
+		gd.addStringField("Output directory:", "", 30);
+		PeakParameters.addFields(gd);
+		gd.addNumericField("Threads", Prefs.getThreads(), 0);
+		gd.addStringField("Metrics file (optional):", "", 30);
+		gd.addCheckbox("Save 16-bit peak images", false);
+		gd.addCheckbox("Save binary peak lists", false);
+		gd.addCheckbox("Save peak tables (CSV)", false);
+		gd.addStringField("Result cache directory (optional):", "", 30);
+		gd.addNumericField("Result cache size (MB)", ResultCache.getDefault()
+				.getMaxBytes() >> 20, 0);
+		gd.addCheckbox("Share the images with other processes (sharded)", false);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+
+		String input = gd.getNextString();
+		String output = gd.getNextString();
+		PeakParameters batchParams = new PeakParameters();
+		batchParams.readFields(gd);
+		int threads = (int) gd.getNextNumber();
+		String metrics = gd.getNextString().trim();
+		boolean bits16 = gd.getNextBoolean();
+		boolean peakList = gd.getNextBoolean();
+		boolean peakTable = gd.getNextBoolean();
+		String cacheDir = gd.getNextString().trim();
+		long cacheMb = Math.max(1, (long) gd.getNextNumber());
+		boolean sharded = gd.getNextBoolean();
+		batchParams.validate(Integer.MAX_VALUE);
+
+		ShardCoordinator shards = null;
+		BatchProcessor batch;
+		if (sharded) {
+			shards = new ShardCoordinator(new File(input), new File(output),
+					batchParams);
+			shards.setThreads(threads);
+			batch = shards.getBatch();
+		} else {
+			batch = new BatchProcessor(new File(input), new File(output),
+					batchParams);
+		}
+		batch.setThreads(threads);
+		if (metrics.length() > 0)
+			batch.setMetricsFile(new File(metrics));
+		batch.setBitDepth(bits16 ? 16 : 8);
+		batch.setPeakList(peakList);
+		batch.setPeakTable(peakTable);
+		if (cacheDir.length() > 0)
+			batch.setCache(new ResultCache(new File(cacheDir), cacheMb << 20));
+		try {
+			if (shards != null)
+				shards.run();
+			else
+				batch.run();
+		} catch (InterruptedException e) {
+			IJ.log("Batch processing interrupted");
+		} catch (IOException e) {
+			IJ.error("Sharded batch", e.getMessage());
+		}
+	}
+
+	/**
+	 * Processes an uncompressed TIFF too large for memory with
+	 * {@link TiledProcessor}, writing a 16-bit peak image and its statistics.
+	 */
+	private void runTiled() {
+		GenericDialog gd = new GenericDialog("Large image peak detection:");
+		gd.addStringField("Input file:", "", 30);
+		gd.addStringField("Output file:", "", 30);
+		PeakParameters.addFields(gd);
+		gd.addNumericField("Band size (MB)", 256, 0);
+		gd.addNumericField("Threads", Prefs.getThreads(), 0);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+
+		File input = new File(gd.getNextString());
+		File output = new File(gd.getNextString());
+		PeakParameters tiledParams = new PeakParameters();
+		tiledParams.readFields(gd);
+		int band = (int) gd.getNextNumber();
+		int threads = (int) gd.getNextNumber();
+		tiledParams.validate(Integer.MAX_VALUE);
+
+		try {
+			MappedImage source = MappedImage.openTiff(input, tiledParams.channel);
+			try {
+				TiledProcessor tiled = new TiledProcessor(source, tiledParams);
+				tiled.setBandSize(band);
+				tiled.setThreads(threads);
+				tiled.run(output);
+				ResultWriter.saveData(tiled.getImageStatistics(), tiled
+						.getPeakStatistics().getMax(), tiledParams, new File(
+						output.getParentFile(), FilenameUtils.getBaseName(output
+								.getName()) + ".csv").getPath());
+			} finally {
+				source.close();
+			}
+		} catch (IOException e) {
+			IJ.log("Error processing " + input.getName() + ": " + e);
+		}
+	}
+
+	/**
+	 * Processes the images written to a directory during an acquisition with
+	 * {@link WatchProcessor}, until the user stops it.
+	 */
+	private void runWatch() {
+		GenericDialog gd = new GenericDialog("Watch folder peak detection:");
+		gd.addStringField("Input directory:", "", 30);
+		gd.addStringField("Results file (CSV):", "", 30);
+		PeakParameters.addFields(gd);
+		gd.addNumericField("Threads", Prefs.getThreads(), 0);
+		gd.addNumericField("Queue size", 16, 0);
+		gd.addStringField("Peak image directory (optional):", "", 30);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+
+		final File input = new File(gd.getNextString());
+		File csv = new File(gd.getNextString());
+		PeakParameters watchParams = new PeakParameters();
+		watchParams.readFields(gd);
+		int threads = (int) gd.getNextNumber();
+		int queue = (int) gd.getNextNumber();
+		String images = gd.getNextString().trim();
+		watchParams.validate(Integer.MAX_VALUE);
+
+		final WatchProcessor watch = new WatchProcessor(input, csv, watchParams);
+		watch.setThreads(threads);
+		watch.setQueueSize(queue);
+		if (images.length() > 0)
+			watch.setImageDirectory(new File(images));
+		Thread watcher = new Thread("Peak watch") {
+			public void run() {
+				try {
+					watch.run();
+				} catch (IOException e) {
+					IJ.log("Error watching " + input + ": " + e);
+				} catch (InterruptedException e) {
+					IJ.log("Watching " + input + " interrupted");
+				}
+			}
+		};
+		watcher.start();
+		new WaitForUserDialog("Watch folder", "Watching " + input
+				+ "\nClick OK to stop.").show();
+		watch.stop();
+		try {
+			watcher.join();
+		} catch (InterruptedException e) {
+			watcher.interrupt();
+		}
+	}
+
+	/**
+	 * Analyzes the current image with a grid of settings using
+	 * {@link ParameterSweep}, shows the statistics of every combination and
+	 * saves them.
+	 */
+	private void runSweep(ImagePlus imp) {
+		GenericDialog gd = new GenericDialog("Peak detection parameter sweep:");
+		gd.addStringField("Peak widths:", "10,20,30", 20);
+		gd.addStringField("Stringencies:", "1,2,3", 20);
+		gd.addStringField("Thresholds:", ""
+				+ PeakParameters.DEFAULT_THRESHOLD, 20);
+		gd.addStringField("Filters (circle, square, none):", "none", 20);
+		gd.addStringField("Region sizes:", "" + PeakParameters.DEFAULT_REGION,
+				20);
+		gd.addStringField("Densities:", "" + PeakParameters.DEFAULT_DENSITY, 20);
+		gd.addNumericField("Channel", PeakParameters.DEFAULT_CHANNEL, 0);
+		gd.addNumericField("Threads", Prefs.getThreads(), 0);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+
+		String options = "peaks=" + list(gd.getNextString()) + " stringencies="
+				+ list(gd.getNextString()) + " thresholds="
+				+ list(gd.getNextString()) + " filters="
+				+ list(gd.getNextString()) + " regions="
+				+ list(gd.getNextString()) + " densities="
+				+ list(gd.getNextString());
+		PeakParameters plane = new PeakParameters();
+		plane.channel = Math.max(1, Math.min(imp.getNChannels(),
+				(int) gd.getNextNumber()));
+		int threads = (int) gd.getNextNumber();
+
+		String title = FilenameUtils.getBaseName(imp.getTitle());
+		ParameterSweep sweep;
+		try {
+			sweep = ParameterSweep.fromOptions(imp.getStack()
+					.getProcessor(plane.stackIndex(imp)), title, options);
+		} catch (IllegalArgumentException e) {
+			IJ.error("Parameter sweep", e.getMessage());
+			return;
+		}
+		sweep.setThreads(threads);
+		try {
+			sweep.run();
+		} catch (InterruptedException e) {
+			return;
+		} catch (IllegalArgumentException e) {
+			IJ.error("Parameter sweep", e.getMessage());
+			return;
+		}
+		sweep.toResultsTable().show(title + " sweep");
+
+		SaveDialog sd = new SaveDialog("Save sweep as...", "", title
+				+ " sweep", ".csv");
+		if (sd.getDirectory() != null) {
+			try {
+				ResultWriter.saveSweep(sweep, sd.getDirectory()
+						+ sd.getFileName());
+			} catch (IOException e) {
+				IJ.showMessage("Error saving file!",
+						"Please check that the file is not in use and try running the plugin again.");
+			}
+		}
+	}
+
+	/**
+	 * A comma separated list without spaces, as options need.
+	 */
+	private static String list(String s) {
+		return s.replaceAll("\\s+", "");
+	}
+
 	void showAbout() {
 		IJ.showMessage(
 				"About MultipleProfilePeaks...",
@@ -1,9 +1,16 @@
 package com.aleadam;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import ij.ImagePlus;
-import ij.gui.Line;
+import ij.Prefs;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 
@@ -11,207 +18,576 @@ public class AllProfilesData {
 	public ImagePlus imp;
 	private String name;
 	public int width, height;
-	private int[] tenths;
-	private float peakAverage;
-	private int count;
-	public int[][] allPixelValues;
-	public int[][] peakVal;
-	public int[][] peakPos;
-	public Line[] lines;
+	private ValueHistogram histogram;
+	private PeakStatistics peakStats;
+	/**
+	 * All profiles in one flat buffer: the {@code height} rows first, each
+	 * {@code width} long, followed by the {@code width} columns, each
+	 * {@code height} long. See {@link #getProfileOffset(int)}. Filled by
+	 * {@link #extract()}.
+	 */
+	public int[] allPixelValues;
+	private CompactPeaks peaks;
+	private PeakMask mask;
+	// Source pixels and threshold, to read profiles on the fly when they are
+	// not retained in allPixelValues
+	private Object pixels;
+	private float threshold;
+	private boolean shortValues;
+	private boolean retainProfiles;
 	private int peakWidth;
 	private float stringency;
+	private int threads = Prefs.getThreads();
+	private ExecutorService executor;
+
+	// Worker threads keep their detector, and its scratch buffers, between
+	// profiles and between images, here and in TiledProcessor
+	static final ThreadLocal<PeakDetector> DETECTORS = new ThreadLocal<PeakDetector>() {
+		protected PeakDetector initialValue() {
+			return new PeakDetector();
+		}
+	};
 
 	public AllProfilesData(ImagePlus imp, String name, int peakWidth,
 			float stringency, float thresholdInt) {
+		this(imp, name, peakWidth, stringency, thresholdInt, true);
+	}
+
+	/**
+	 * The profiles are read on first use, with the threads set by then.
+	 * 
+	 * @param retainProfiles
+	 *            if false, profiles are not kept in {@link #allPixelValues}
+	 *            but read from the image while peaks are detected, so memory
+	 *            is about the size of the peaks only. The spikiness stages
+	 *            ({@link #computeSpikiness(int)}) then are not available.
+	 */
+	public AllProfilesData(ImagePlus imp, String name, int peakWidth,
+			float stringency, float thresholdInt, boolean retainProfiles) {
 		this.name = name;
 		this.peakWidth = peakWidth;
 		this.stringency = stringency;
 		width = imp.getWidth();
 		height = imp.getHeight();
-		lines = generateRoi();
-
-		allPixelValues = new int[lines.length][];
-		for (int i = 0; i < lines.length; i++) {
-			imp.setRoi(lines[i]);
-			double val[] = lines[i].getPixels();
-			allPixelValues[i] = new int[val.length];
-			for (int j=0; j<val.length; j++) {
-				allPixelValues[i][j] = (int) Math.max(0, val[j]-thresholdInt);
+		pixels = imp.getProcessor().getPixels();
+		threshold = thresholdInt;
+		shortValues = !(pixels instanceof float[]);
+		this.retainProfiles = retainProfiles;
+	}
+
+	public ImageProcessor process() {
+		extract();
+		populatePeaks(peakWidth, stringency);
+		return peakImage();
+	}
+
+	/**
+	 * Computes the spikiness function of every profile, to be passed to
+	 * {@link #process(Spikiness, float)}.
+	 */
+	public Spikiness computeSpikiness(final int peakWidth) {
+		extract();
+		checkRetained();
+		final Spikiness spikiness = new Spikiness(peakWidth,
+				allPixelValues.length, getProfileCount());
+		forEachProfile(new ProfileTask() {
+			public void run(int chunk, int from, int to) {
+				PeakDetector pd = DETECTORS.get();
+				for (int i = from; i < to; i++) {
+					int offset = getProfileOffset(i);
+					int length = getProfileLength(i);
+					pd.spikiness(allPixelValues, offset, length, peakWidth,
+							spikiness.values, offset);
+					pd.moments(spikiness.values, offset, length);
+					spikiness.mean[i] = pd.getMean();
+					spikiness.std[i] = pd.getStd();
+				}
+				pd.flushMetrics();
 			}
-		}
+		});
+		return spikiness;
+	}
 
-		tenths = getTenths(allPixelValues);
+	/**
+	 * Same as {@link #process()}, with the peak width of the given spikiness
+	 * and the given stringency, without recomputing the spikiness function.
+	 */
+	public ImageProcessor process(final Spikiness spikiness,
+			final float stringency) {
+		checkRetained();
+		final CompactPeaks.Chunk[] chunks = new CompactPeaks.Chunk[chunkCount()];
+		final PeakStatistics[] parts = new PeakStatistics[chunks.length];
+		forEachProfile(new ProfileTask() {
+			public void run(int chunk, int from, int to) {
+				PeakDetector pd = DETECTORS.get();
+				int[] pos = pd.peakBuffer(Math.max(width, height));
+				CompactPeaks.Chunk found = new CompactPeaks.Chunk(from, to);
+				PeakStatistics stats = new PeakStatistics();
+				for (int i = from; i < to; i++) {
+					int offset = getProfileOffset(i);
+					int n = pd.select(allPixelValues, offset,
+							getProfileLength(i), spikiness.values, offset,
+							spikiness.mean[i], spikiness.std[i],
+							spikiness.peakWidth, stringency, pos);
+					storePeaks(found, i, pos, n, allPixelValues, offset,
+							spikiness.values, offset, spikiness.mean[i],
+							spikiness.std[i], stats);
+				}
+				pd.flushMetrics();
+				chunks[chunk] = found;
+				parts[chunk] = stats;
+			}
+		});
+		collect(chunks, parts);
+		return peakImage();
 	}
 
-	public ImageProcessor process() {
-		populatePeaks(allPixelValues, peakWidth, stringency);
+	/**
+	 * Writes the peaks to a new image, and their positions to a new mask.
+	 */
+	private ImageProcessor peakImage() {
 		ImageProcessor ip = new ShortProcessor(width, height);
+		short[] dest = (short[]) ip.getPixels();
+		mask = new PeakMask(width, height);
 		for (int i = 0; i < height; i++) {
-			for (int j = 0; j < peakPos[i].length; j++) {
-				ip.putPixelValue(peakPos[i][j], i, peakVal[i][j]);
+			for (int k = peaks.start(i); k < peaks.end(i); k++) {
+				int x = peaks.getPosition(k);
+				dest[i * width + x] = clip(peaks.getValue(k));
+				if (dest[i * width + x] != 0)
+					mask.set(x, i);
 			}
 		}
 		for (int i = height; i < height + width; i++) {
-			for (int j = 0; j < peakPos[i].length; j++) {
-				ip.putPixelValue(i, peakPos[i][j], peakVal[i][j]);
+			for (int k = peaks.start(i); k < peaks.end(i); k++) {
+				int y = peaks.getPosition(k);
+				dest[y * width + i - height] = clip(peaks.getValue(k));
+				if (dest[y * width + i - height] != 0)
+					mask.set(i - height, y);
 			}
 		}
 		return ip;
 	}
 
-	private Line[] generateRoi() {
-		Line[] lines = new Line[height + width];
-		for (int i = 0; i < height; i++) {
-			lines[i] = new Line(0, i, width, i);
+	/**
+	 * A peak value as a pixel of the 16-bit peak image.
+	 */
+	static short clip(int value) {
+		return (short) Math.min(65535, value);
+	}
+
+	private void checkRetained() {
+		if (allPixelValues == null)
+			throw new IllegalStateException("Profiles of " + name
+					+ " were not retained");
+	}
+
+	/**
+	 * Peaks of every profile found by the last call to process().
+	 */
+	public CompactPeaks getPeaks() {
+		return peaks;
+	}
+
+	/**
+	 * The nonzero pixels of the peak image returned by the last call to
+	 * process(), for the density filters.
+	 */
+	public PeakMask getMask() {
+		return mask;
+	}
+
+	public int getProfileCount() {
+		return height + width;
+	}
+
+	public int getProfileOffset(int profile) {
+		if (profile < height)
+			return profile * width;
+		return height * width + (profile - height) * height;
+	}
+
+	public int getProfileLength(int profile) {
+		return profile < height ? width : height;
+	}
+
+	// Side of the square tiles in which rows are transposed into columns:
+	// the 64 columns written by one tile stay in cache
+	private static final int TILE = 64;
+
+	/**
+	 * Reads the profiles and builds the histogram of their values, if not
+	 * done yet. Called by every method that needs them.
+	 */
+	public void extract() {
+		if (histogram != null)
+			return;
+		long start = Metrics.start();
+		final int[] values = retainProfiles ? new int[2 * width * height] : null;
+		final int maxValue = maxProfileValue();
+		int bands = (height + TILE - 1) / TILE;
+		final ValueHistogram[] parts = new ValueHistogram[chunkCount(bands)];
+		forEach(bands, new ProfileTask() {
+			public void run(int chunk, int from, int to) {
+				ValueHistogram part = new ValueHistogram(maxValue);
+				int[] row = values == null ? new int[width] : null;
+				for (int band = from; band < to; band++)
+					extractBand(band * TILE, Math.min(height, (band + 1) * TILE),
+							values, row, part);
+				parts[chunk] = part;
+			}
+		});
+		ValueHistogram all = new ValueHistogram(maxValue);
+		for (ValueHistogram part : parts)
+			all.merge(part);
+		// Only set once complete, so an interrupted extraction is redone
+		allPixelValues = values;
+		histogram = all;
+		Metrics.stop(Metrics.Stage.EXTRACTION, start);
+	}
+
+	private int maxProfileValue() {
+		if (pixels instanceof byte[])
+			return 255;
+		if (pixels instanceof short[])
+			return 65535;
+		float[] floats = (float[]) pixels;
+		float max = 0;
+		// NaN would make the max NaN, and an infinity an unusable range
+		for (int i = 0; i < floats.length; i++) {
+			if (floats[i] > max && floats[i] != Float.POSITIVE_INFINITY)
+				max = floats[i];
 		}
-		for (int i = height; i < height + width; i++) {
-			lines[i] = new Line(i, 0, i, height);
+		return (int) Math.max(0, (double) max - threshold);
+	}
+
+	/**
+	 * Reads rows <code>y0</code> to <code>y1 - 1</code>, subtracting the
+	 * threshold, and adds every value to the histogram twice, once for its row
+	 * and once for its column. If the profiles are retained the band is
+	 * also copied to the columns one square tile at a time, so both the rows
+	 * read and the columns written stay in cache. Bands write disjoint parts
+	 * of every column, so they can be extracted concurrently.
+	 */
+	private void extractBand(int y0, int y1, int[] values, int[] row,
+			ValueHistogram part) {
+		for (int y = y0; y < y1; y++) {
+			int[] dest = values != null ? values : row;
+			int offset = values != null ? y * width : 0;
+			readSpan(y * width, width, dest, offset);
+			for (int x = 0; x < width; x++)
+				part.add(dest[offset + x], 2);
 		}
-		return lines;
-	}
-
-	private void populatePeaks(int[][] values, int peakWidth,
-			float stringency) {
-		PeakDetector[] pd = new PeakDetector[values.length];
-		peakPos = new int[values.length][];
-		peakVal = new int[values.length][];
-		count = 0;
-		for (int i = 0; i < values.length; i++) {
-			pd[i] = new PeakDetector(values[i]);
-			peakPos[i] = pd[i].process(peakWidth, stringency);
-			peakVal[i] = new int[peakPos[i].length];
-
-			for (int j = 0; j < peakPos[i].length; j++) {
-				peakVal[i][j] = values[i][peakPos[i][j]];
-				count++;
+		if (values == null)
+			return;
+		int columns = width * height;
+		for (int x0 = 0; x0 < width; x0 += TILE) {
+			int x1 = Math.min(width, x0 + TILE);
+			for (int x = x0; x < x1; x++) {
+				int dest = columns + x * height;
+				for (int y = y0; y < y1; y++)
+					values[dest + y] = values[y * width + x];
 			}
 		}
 	}
 
-	public float getPeakAverage() {
-		if (peakVal == null)
-			return 0;
-		for (int i = 0; i < peakVal.length; i++) {
-			for (int j = 0; j < peakVal[i].length; j++) {
-				peakAverage += peakVal[i][j];
+	/**
+	 * Reads <code>count</code> adjacent columns from <code>x0</code> into
+	 * <code>dest</code>, one after the other, reading the image row by row.
+	 * 
+	 * @param row
+	 *            scratch of at least <code>count</code> elements
+	 */
+	private void readColumns(int x0, int count, int[] dest, int[] row) {
+		for (int y = 0; y < height; y++) {
+			readSpan(y * width + x0, count, row, 0);
+			for (int c = 0; c < count; c++)
+				dest[c * height + y] = row[c];
+		}
+	}
+
+	/**
+	 * Reads <code>length</code> consecutive pixels from <code>start</code>,
+	 * subtracting the threshold, with the vector kernels when the threshold
+	 * is a whole number.
+	 */
+	private void readSpan(int start, int length, int[] dest, int destOffset) {
+		float thresholdInt = threshold;
+		boolean integral = Kernels.isVectorized() && Kernels.isIntegral(threshold);
+		if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[]) pixels;
+			if (integral) {
+				Kernels.threshold(bytes, start, length, (int) threshold, dest,
+						destOffset);
+				return;
+			}
+			for (int j = 0; j < length; j++)
+				dest[destOffset + j] = (int) Math.max(0, (bytes[start + j] & 0xff)
+						- thresholdInt);
+		} else if (pixels instanceof short[]) {
+			short[] shorts = (short[]) pixels;
+			if (integral) {
+				Kernels.threshold(shorts, start, length, (int) threshold, dest,
+						destOffset);
+				return;
 			}
+			for (int j = 0; j < length; j++)
+				dest[destOffset + j] = (int) Math.max(0,
+						(shorts[start + j] & 0xffff) - thresholdInt);
+		} else {
+			float[] floats = (float[]) pixels;
+			for (int j = 0; j < length; j++)
+				dest[destOffset + j] = (int) Math.max(0, (double) floats[start + j]
+						- thresholdInt);
 		}
-		return peakAverage /= count;
 	}
 
-	public int getPeakCount() {
-		return count;
+	/**
+	 * Sets the number of threads used to detect peaks. With 1 thread (and no
+	 * executor) all profiles are processed sequentially on the calling thread.
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
 	}
 
-	public float getPeakMedian() {
-		int size = 0;
-		for (int i = 0; i < peakVal.length; i++) {
-			size += peakVal[i].length;
-		}
-		float[] data = new float[size];
-		int c = 0;
-		for (int i = 0; i < peakVal.length; i++) {
-			for (int j = 0; j < peakVal[i].length; j++) {
-				data[c++] = peakVal[i][j];
+	/**
+	 * Runs peak detection on the given executor instead of a pool created for
+	 * each call. The executor must not be the one running the caller, or the
+	 * tasks may never get a thread.
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	// Profiles between checks for interruption when running sequentially
+	private static final int SEQUENTIAL_CHUNK = 256;
+
+	private interface ProfileTask {
+		void run(int chunk, int from, int to);
+	}
+
+	private boolean sequential(int items) {
+		return Math.min(threads, items) <= 1 && executor == null;
+	}
+
+	/**
+	 * Number of chunks {@link #forEachProfile(ProfileTask)} splits the
+	 * profiles into.
+	 */
+	private int chunkCount() {
+		return chunkCount(getProfileCount());
+	}
+
+	private int chunkCount(int items) {
+		if (sequential(items))
+			return (items + SEQUENTIAL_CHUNK - 1) / SEQUENTIAL_CHUNK;
+		// Several chunks per thread, since rows and columns differ in length
+		return Math.min(items, 4 * Math.max(1, Math.min(threads, items)));
+	}
+
+	/**
+	 * Runs the task over all profiles, split into chunks on the thread pool
+	 * unless a single thread is used. Row and column profiles are in the same
+	 * chunks list, so both halves are processed concurrently.
+	 */
+	private void forEachProfile(final ProfileTask task) {
+		forEach(getProfileCount(), task);
+	}
+
+	/**
+	 * Runs the task over the items 0 to <code>items - 1</code>, split as
+	 * in {@link #forEachProfile(ProfileTask)}.
+	 */
+	private void forEach(final int items, final ProfileTask task) {
+		final int chunks = chunkCount(items);
+		if (sequential(items)) {
+			for (int c = 0; c < chunks; c++) {
+				if (Thread.currentThread().isInterrupted())
+					throw new CancellationException("Peak detection interrupted");
+				task.run(c, c * SEQUENTIAL_CHUNK,
+						Math.min(items, (c + 1) * SEQUENTIAL_CHUNK));
 			}
+			return;
 		}
-		Arrays.sort(data);
-		if (data.length % 2 == 0) {
-			return (float) ((data[(data.length / 2) - 1] + data[data.length / 2]) / 2.0);
-		} else {
-			return data[data.length / 2];
+		ExecutorService pool = executor;
+		if (pool == null)
+			pool = Executors.newFixedThreadPool(Math.min(threads, items));
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>(chunks);
+			for (int c = 0; c < chunks; c++) {
+				final int chunk = c;
+				final int from = (int) ((long) items * c / chunks);
+				final int to = (int) ((long) items * (c + 1) / chunks);
+				futures.add(pool.submit(new Callable<Void>() {
+					public Void call() {
+						task.run(chunk, from, to);
+						return null;
+					}
+				}));
+			}
+			try {
+				for (Future<Void> f : futures)
+					f.get();
+			} catch (InterruptedException e) {
+				// Chunks not started yet are dropped
+				for (Future<Void> f : futures)
+					f.cancel(true);
+				throw e;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Peak detection interrupted");
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			if (pool != executor)
+				pool.shutdown();
 		}
 	}
 
-	private float getVariance() {
-		if (peakAverage==0) return 0;
-		
-		float var = 0;
-		for (int i = 0; i < peakVal.length; i++) {
-			for (int j = 0; j < peakVal[i].length; j++) {
-				var += (peakVal[i][j] - peakAverage)
-						* (peakVal[i][j] - peakAverage);
+	private void populatePeaks(final int peakWidth, final float stringency) {
+		final CompactPeaks.Chunk[] chunks = new CompactPeaks.Chunk[chunkCount()];
+		final PeakStatistics[] parts = new PeakStatistics[chunks.length];
+		forEachProfile(new ProfileTask() {
+			public void run(int chunk, int from, int to) {
+				PeakDetector pd = DETECTORS.get();
+				int[] pos = pd.peakBuffer(Math.max(width, height));
+				// Without retained profiles, rows are read one at a time and
+				// columns TILE at a time, so the image is read row by row
+				int[] row = null, block = null;
+				int blockStart = 0, blockEnd = 0;
+				if (allPixelValues == null) {
+					row = new int[width];
+					block = new int[TILE * height];
+				}
+				CompactPeaks.Chunk found = new CompactPeaks.Chunk(from, to);
+				PeakStatistics stats = new PeakStatistics();
+				for (int i = from; i < to; i++) {
+					int length = getProfileLength(i);
+					int[] values = allPixelValues;
+					int offset = getProfileOffset(i);
+					if (values == null && i < height) {
+						readSpan(i * width, width, row, 0);
+						values = row;
+						offset = 0;
+					} else if (values == null) {
+						int x = i - height;
+						if (x >= blockEnd) {
+							blockStart = x;
+							blockEnd = Math.min(x + TILE, to - height);
+							readColumns(blockStart, blockEnd - blockStart,
+									block, row);
+						}
+						values = block;
+						offset = (x - blockStart) * height;
+					}
+					int n = pd.process(values, offset, length, peakWidth,
+							stringency, pos);
+					storePeaks(found, i, pos, n, values, offset,
+							pd.getSpikiness(), 0, pd.getMean(), pd.getStd(), stats);
+				}
+				pd.flushMetrics();
+				chunks[chunk] = found;
+				parts[chunk] = stats;
 			}
+		});
+		collect(chunks, parts);
+	}
+
+	private void storePeaks(CompactPeaks.Chunk found, int profile, int[] pos,
+			int n, int[] values, int offset, float[] S, int sOffset,
+			float mean, float std, PeakStatistics stats) {
+		found.add(profile, pos, n, values, offset, S, sOffset, mean, std);
+		for (int j = 0; j < n; j++) {
+			stats.add(values[offset + pos[j]]);
 		}
-		return var / (count - 1);
+	}
+
+	/**
+	 * Assembles the peaks and combines the statistics of each chunk in chunk
+	 * order, so the result does not depend on which thread finished first.
+	 */
+	private void collect(CompactPeaks.Chunk[] chunks, PeakStatistics[] parts) {
+		long start = Metrics.start();
+		peaks = CompactPeaks.assemble(getProfileCount(), chunks, shortValues);
+		peakStats = new PeakStatistics();
+		for (PeakStatistics part : parts)
+			peakStats.merge(part);
+		Metrics.stop(Metrics.Stage.COLLECTION, start);
+	}
+
+	/**
+	 * Statistics of all detected peaks, accumulated during detection.
+	 */
+	public PeakStatistics getPeakStatistics() {
+		return peakStats;
+	}
+
+	public float getPeakAverage() {
+		return peakStats == null ? 0 : peakStats.getPeakAverage();
+	}
+
+	public int getPeakCount() {
+		return peakStats == null ? 0 : peakStats.getPeakCount();
+	}
+
+	public float getPeakMedian() {
+		return peakStats == null ? 0 : peakStats.getPeakMedian();
 	}
 
 	public float getStDev() {
-		if (count < 2)
-			return 0;
-		return (float) Math.sqrt(getVariance());
+		return peakStats == null ? 0 : peakStats.getStDev();
 	}
 
 	public int getMaxPeak() {
-		int max = 0;
-		for (int i = 0; i < peakVal.length; i++) {
-			for (int j = 0; j < peakVal[i].length; j++) {
-				max = max > peakVal[i][j] ? max : peakVal[i][j];
-			}
-		}
-		return max;
+		return peakStats == null ? 0 : peakStats.getMax();
 	}
 
 	public int getMinPeak() {
-		int min = Integer.MAX_VALUE;
-		for (int i = 0; i < peakVal.length; i++) {
-			for (int j = 0; j < peakVal[i].length; j++) {
-				min = min < peakVal[i][j] ? min : peakVal[i][j];
-			}
-		}
-		return min;
+		return peakStats == null ? 0 : peakStats.getMin();
 	}
 
 	public String getName() {
 		return name;
 	}
 
+	/**
+	 * The value at the end of the given tenth (0-9) of all sorted profile
+	 * values.
+	 */
 	public int getTenth(int tenth) {
-		return tenths[tenth];
+		extract();
+		long n = histogram.getCount();
+		return histogram.valueAtRank(Math.max(0, n * (tenth + 1) / 10 - 1));
 	}
 
+	/**
+	 * The value below which the given percentage of profile values lie.
+	 */
+	public int getPercentile(double percent) {
+		extract();
+		return histogram.percentile(percent);
+	}
+
+	/**
+	 * The mean of the profile values in the lowest <code>tenth</code> tenths.
+	 */
 	public float getAverageBelow(int tenth) {
-		int size = 0;
-		float avg = 0;
-		int count = 0;
-		for (int i = 0; i < allPixelValues.length; i++) {
-			size += allPixelValues[i].length;
-		}
-		float[] data = new float[size];
-		int c = 0;
-		for (int i = 0; i < allPixelValues.length; i++) {
-			for (int j = 0; j < allPixelValues[i].length; j++) {
-				data[c++] = allPixelValues[i][j];
-			}
-		}
-		Arrays.sort(data);
-		for (int i = 0; i < (data.length * tenth / 10); i++) {
-			avg += data[i];
-			count++;
-		}
-		if (count == 0)
-			return 0;
-		return avg / count;
+		extract();
+		return histogram.averageOfLowest(histogram.getCount() * tenth / 10);
 	}
 
-	private int[] getTenths(int[][] values) {
-		int size = 0;
-		int[] tenths = new int[10];
-		for (int i = 0; i < values.length; i++) {
-			size += values[i].length;
-		}
-		int[] data = new int[size];
-		int c = 0;
-		for (int i = 0; i < values.length; i++) {
-			for (int j = 0; j < values[i].length; j++) {
-				data[c++] = values[i][j];
-			}
-		}
-		Arrays.sort(data);
-		for (int i = 0; i < 10; i++) {
-			tenths[i] = data[(int) ((data.length * (i + 1)) / 10 - 1)];
-		}
-		return tenths;
+	/**
+	 * The mean of the profile values below the given percentile.
+	 */
+	public float getAverageBelowPercentile(double percent) {
+		extract();
+		return histogram.averageOfLowest((long) (histogram.getCount()
+				* percent / 100));
+	}
+
+	public ValueHistogram getHistogram() {
+		extract();
+		return histogram;
 	}
 
 }
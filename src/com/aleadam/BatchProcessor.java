@@ -0,0 +1,260 @@
+package com.aleadam;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FilenameUtils;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Macro;
+import ij.Prefs;
+import ij.process.ImageProcessor;
+
+/**
+ * Processes every image of a directory without any user interface, writing
+ * the peak image (TIFF) and statistics (CSV) of each one, and optionally its
+ * binary peak list (see {@link ResultWriter#savePeakList}) and peak table
+ * (CSV, see {@link PeakTable}), to an output directory. Images are processed concurrently by a bounded pool of workers.
+ * <p>
+ * From the command line:
+ * 
+ * <pre>
+ * java -cp ij.jar:MultipleProfilePeaks.jar com.aleadam.BatchProcessor \
+ *     inputDir outputDir [peak=20] [stringency=1] [threshold=0] \
+ *     [density=1] [region=5] [filter=circle|square|none] [channel=1] [threads=n] \
+ *     [metrics=timings.json] [bits=8|16] [peaklist=true] \
+ *     [peaktable=true] [cache=dir] [cachesize=1024]
+ * </pre>
+ */
+public class BatchProcessor {
+	private File inputDir, outputDir;
+	private PeakParameters params;
+	private int threads = Prefs.getThreads();
+	private File metricsFile;
+	private int bitDepth = 8;
+	private boolean peakList, peakTable;
+	private ResultCache cache;
+
+	public BatchProcessor(File inputDir, File outputDir, PeakParameters params) {
+		this.inputDir = inputDir;
+		this.outputDir = outputDir;
+		this.params = params;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Records the stage timings and counters of the whole run with
+	 * {@link Metrics} and saves them to the given JSON or CSV file.
+	 */
+	public void setMetricsFile(File metricsFile) {
+		this.metricsFile = metricsFile;
+	}
+
+	File getMetricsFile() {
+		return metricsFile;
+	}
+
+	/**
+	 * Saves the peak images rescaled to 8 bits (the default) or with the
+	 * original 16-bit intensities.
+	 */
+	public void setBitDepth(int bitDepth) {
+		if (bitDepth != 8 && bitDepth != 16)
+			throw new IllegalArgumentException("Bit depth must be 8 or 16");
+		this.bitDepth = bitDepth;
+	}
+
+	/**
+	 * Also saves the peaks of each image as a binary list (".peaks").
+	 */
+	public void setPeakList(boolean peakList) {
+		this.peakList = peakList;
+	}
+
+	/**
+	 * Also saves the peaks of each image as a table (" peaks.csv") with their
+	 * position, value, score, orientation and nearest neighbour distance.
+	 */
+	public void setPeakTable(boolean peakTable) {
+		this.peakTable = peakTable;
+	}
+
+	/**
+	 * Reads results of images already analyzed with the same settings from
+	 * the cache, and stores new ones. Images whose peak list or table is
+	 * saved are always analyzed, since those need the detection data.
+	 */
+	public void setCache(ResultCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @return the number of images processed successfully.
+	 */
+	public int run() throws InterruptedException {
+		File[] files = inputDir.listFiles();
+		if (files == null) {
+			IJ.log("Not a directory: " + inputDir);
+			return 0;
+		}
+		Arrays.sort(files);
+		if (!outputDir.exists() && !outputDir.mkdirs()) {
+			IJ.log("Cannot create output directory: " + outputDir);
+			return 0;
+		}
+
+		if (metricsFile != null) {
+			Metrics.reset();
+			Metrics.setEnabled(true);
+		}
+
+		// The queue is bounded, so the directory walk runs the tasks itself
+		// rather than queuing every file of a large plate
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		final AtomicInteger done = new AtomicInteger();
+		for (final File file : files) {
+			if (!file.isFile() || file.isHidden())
+				continue;
+			pool.execute(new Runnable() {
+				public void run() {
+					try {
+						if (processFile(file))
+							done.incrementAndGet();
+					} catch (Exception e) {
+						IJ.log("Error processing " + file.getName() + ": " + e);
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		IJ.log("Processed " + done.get() + " images from " + inputDir);
+		if (metricsFile != null) {
+			Metrics.setEnabled(false);
+			Metrics.log();
+			try {
+				Metrics.save(metricsFile.getPath());
+			} catch (IOException e) {
+				IJ.log("Cannot save metrics to " + metricsFile + ": " + e);
+			}
+		}
+		return done.get();
+	}
+
+	/**
+	 * @return false if the file is not an image this plugin can process.
+	 */
+	public boolean processFile(File file) throws IOException {
+		return analyzeFile(file) != null;
+	}
+
+	/**
+	 * Processes one image as {@link #processFile(File)}.
+	 * 
+	 * @return its analysis, or null if it is not an image this plugin can
+	 *         process.
+	 */
+	PeakAnalysis analyzeFile(File file) throws IOException {
+		ImagePlus imp = IJ.openImage(file.getPath());
+		if (imp == null || imp.getBitDepth() == 24) {
+			IJ.log("Skipping " + file.getName() + ": not a grayscale image");
+			return null;
+		}
+		int index = params.stackIndex(imp);
+		if (index == 0) {
+			IJ.log("Skipping " + file.getName() + ": no channel " + params.channel);
+			return null;
+		}
+		ImageProcessor ip = imp.getStack().getProcessor(index);
+		String name = FilenameUtils.getBaseName(file.getName()) + " - channel "
+				+ params.channel;
+
+		String key = cache != null ? ResultCache.key(ip, params) : null;
+		PeakAnalysis result = null;
+		if (key != null && !peakList && !peakTable)
+			result = cache.get(key);
+		if (result == null) {
+			result = PeakAnalysis.analyze(ip, name, params, 1);
+			if (key != null) {
+				try {
+					cache.put(key, result);
+				} catch (IOException e) {
+					IJ.log("Cannot cache " + file.getName() + ": " + e);
+				}
+			}
+		}
+		int maxPeak = result.maxPeak;
+		File base = new File(outputDir, name);
+		if (bitDepth == 16)
+			ResultWriter.saveImage16(result.peaks, base.getPath() + ".tif");
+		else
+			ResultWriter.saveImage(result.peaks, maxPeak, base.getPath()
+					+ ".tif");
+		ResultWriter.saveData(result.peaks, maxPeak, params, base.getPath()
+				+ ".csv");
+		if (peakList || peakTable) {
+			PeakTable table = PeakTable.create(result.data, result.peaks);
+			if (peakList)
+				ResultWriter.savePeakList(table, base.getPath() + ".peaks");
+			if (peakTable)
+				ResultWriter.savePeakTable(table, base.getPath() + " peaks.csv");
+		}
+		return result;
+	}
+
+	/**
+	 * Sets the threads and output options (threads, metrics, bits, peaklist,
+	 * peaktable, cache and cachesize) given in a command line options string.
+	 */
+	void setOptions(String options) {
+		String threads = Macro.getValue(options, "threads", null);
+		if (threads != null)
+			setThreads(Integer.parseInt(threads));
+		String metrics = Macro.getValue(options, "metrics", null);
+		if (metrics != null)
+			setMetricsFile(new File(metrics));
+		String bits = Macro.getValue(options, "bits", null);
+		if (bits != null)
+			setBitDepth(Integer.parseInt(bits));
+		setPeakList(Boolean.parseBoolean(Macro.getValue(options, "peaklist",
+				"false")));
+		setPeakTable(Boolean.parseBoolean(Macro.getValue(options, "peaktable",
+				"false")));
+		String cache = Macro.getValue(options, "cache", null);
+		if (cache != null) {
+			long mb = Long.parseLong(Macro.getValue(options, "cachesize",
+					"1024"));
+			setCache(new ResultCache(new File(cache), mb << 20));
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		if (args.length < 2) {
+			System.err.println("Usage: BatchProcessor inputDir outputDir "
+					+ PeakParameters.USAGE + " [threads=n] [metrics=timings.json] [bits=8|16] "
+					+ "[peaklist=true] [peaktable=true] [cache=dir] [cachesize=1024]");
+			System.exit(1);
+		}
+		StringBuilder options = new StringBuilder();
+		for (int i = 2; i < args.length; i++)
+			options.append(args[i]).append(' ');
+		PeakParameters params = PeakParameters.fromOptions(options.toString());
+		params.validate(Integer.MAX_VALUE);
+		BatchProcessor batch = new BatchProcessor(new File(args[0]), new File(
+				args[1]), params);
+		batch.setOptions(options.toString());
+		batch.run();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,133 @@
+package com.aleadam;
+
+import java.util.Arrays;
+
+/**
+ * The peaks of all profiles in a compressed sparse row layout: the peaks of
+ * profile <code>i</code> are entries <code>start(i)</code> to
+ * <code>end(i) - 1</code> of one positions array and one values array.
+ * Values from 8 and 16-bit images are stored as unsigned shorts. Each peak
+ * also keeps its spikiness score.
+ */
+public class CompactPeaks {
+	private final int[] offsets;
+	private final int[] positions;
+	private final short[] shortValues;
+	private final int[] intValues;
+	private final float[] scores;
+
+	private CompactPeaks(int[] offsets, int[] positions, short[] shortValues,
+			int[] intValues, float[] scores) {
+		this.offsets = offsets;
+		this.positions = positions;
+		this.shortValues = shortValues;
+		this.intValues = intValues;
+		this.scores = scores;
+	}
+
+	public int getProfileCount() {
+		return offsets.length - 1;
+	}
+
+	/** Total number of peaks. */
+	public int size() {
+		return positions.length;
+	}
+
+	public int start(int profile) {
+		return offsets[profile];
+	}
+
+	public int end(int profile) {
+		return offsets[profile + 1];
+	}
+
+	/** Position of peak <code>k</code> along its profile. */
+	public int getPosition(int k) {
+		return positions[k];
+	}
+
+	public int getValue(int k) {
+		return shortValues != null ? shortValues[k] & 0xffff : intValues[k];
+	}
+
+	/**
+	 * Spikiness of peak <code>k</code> in standard deviations above the mean
+	 * spikiness of its profile, the measure compared to the stringency.
+	 */
+	public float getScore(int k) {
+		return scores[k];
+	}
+
+	/**
+	 * The peaks found in a contiguous range of profiles, filled by one worker.
+	 */
+	static class Chunk {
+		final int firstProfile;
+		final int[] counts;
+		int[] positions = new int[64];
+		int[] values = new int[64];
+		float[] scores = new float[64];
+		int size;
+
+		Chunk(int firstProfile, int lastProfile) {
+			this.firstProfile = firstProfile;
+			counts = new int[lastProfile - firstProfile];
+		}
+
+		/**
+		 * @param S
+		 *            the spikiness function of the profile, from
+		 *            <code>sOffset</code>, with its mean and standard deviation
+		 */
+		void add(int profile, int[] pos, int n, int[] data, int dataOffset,
+				float[] S, int sOffset, float mean, float std) {
+			if (size + n > positions.length) {
+				int capacity = Math.max(2 * positions.length, size + n);
+				positions = Arrays.copyOf(positions, capacity);
+				values = Arrays.copyOf(values, capacity);
+				scores = Arrays.copyOf(scores, capacity);
+			}
+			for (int j = 0; j < n; j++) {
+				positions[size + j] = pos[j];
+				values[size + j] = data[dataOffset + pos[j]];
+				scores[size + j] = std > 0 ? (S[sOffset + pos[j]] - mean) / std
+						: 0;
+			}
+			counts[profile - firstProfile] += n;
+			size += n;
+		}
+	}
+
+	/**
+	 * Concatenates chunks that together cover all profiles in order.
+	 */
+	static CompactPeaks assemble(int profiles, Chunk[] chunks,
+			boolean shortValues) {
+		int total = 0;
+		for (Chunk c : chunks)
+			total += c.size;
+		int[] offsets = new int[profiles + 1];
+		int[] positions = new int[total];
+		short[] shorts = shortValues ? new short[total] : null;
+		int[] ints = shortValues ? null : new int[total];
+		float[] scores = new float[total];
+		int k = 0;
+		for (Chunk c : chunks) {
+			for (int i = 0; i < c.counts.length; i++)
+				offsets[c.firstProfile + i + 1] = c.counts[i];
+			System.arraycopy(c.positions, 0, positions, k, c.size);
+			System.arraycopy(c.scores, 0, scores, k, c.size);
+			if (shortValues) {
+				for (int j = 0; j < c.size; j++)
+					shorts[k + j] = (short) c.values[j];
+			} else {
+				System.arraycopy(c.values, 0, ints, k, c.size);
+			}
+			k += c.size;
+		}
+		for (int i = 0; i < profiles; i++)
+			offsets[i + 1] += offsets[i];
+		return new CompactPeaks(offsets, positions, shorts, ints, scores);
+	}
+}
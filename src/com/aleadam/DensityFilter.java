@@ -0,0 +1,231 @@
+package com.aleadam;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.gui.OvalRoi;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Removes isolated peaks from a peak image: a peak is kept only if at least
+ * <code>density</code> peaks are found in the region around it.
+ * <p>
+ * Only the pixels of a {@link PeakMask} are visited, since every other pixel
+ * stays 0, and the peaks of their region are counted on the mask, a row
+ * segment at a time. The cost thus grows with the number of peaks and the
+ * region size, not the image size.
+ */
+public class DensityFilter {
+
+	/**
+	 * Square region of 2 * region pixels on each side. Pixels closer than
+	 * <code>region</code> to the image border are cleared.
+	 */
+	public static ImageProcessor square(ImageProcessor ip, int region,
+			int density) {
+		if (density == 1)
+			return ip;
+		return square(ip, PeakMask.of(ip), region, density, 1);
+	}
+
+	/**
+	 * Same as {@link #square(ImageProcessor, int, int)} with the peaks of
+	 * <code>ip</code> already in a mask, and bands of rows filtered on
+	 * <code>threads</code> threads.
+	 */
+	public static ImageProcessor square(ImageProcessor ip, PeakMask mask,
+			int region, int density, int threads) {
+		return square(ip, mask, region, density, threads, null);
+	}
+
+	/**
+	 * Same as above, running the bands on <code>executor</code> instead of a
+	 * pool created for the call, unless it is null.
+	 */
+	public static ImageProcessor square(ImageProcessor ip, PeakMask mask,
+			int region, int density, int threads, ExecutorService executor) {
+		if (density == 1)
+			return ip;
+		// Window [x - region, x + region) x [y - region, y + region)
+		int size = 2 * region;
+		int[] spanStart = new int[size];
+		int[] spanEnd = new int[size];
+		Arrays.fill(spanEnd, size);
+		return filter(ip, mask, region, spanStart, spanEnd, density, true,
+				threads, executor);
+	}
+
+	/**
+	 * Circular region of diameter 2 * region pixels, with the same shape as an
+	 * {@link OvalRoi} of that size. Near the border only the part of the disk
+	 * inside the image is counted.
+	 */
+	public static ImageProcessor circle(ImageProcessor ip, int region,
+			int density) {
+		if (density == 1)
+			return ip;
+		return circle(ip, PeakMask.of(ip), region, density, 1);
+	}
+
+	/**
+	 * Same as {@link #circle(ImageProcessor, int, int)} with the peaks of
+	 * <code>ip</code> already in a mask, and bands of rows filtered on
+	 * <code>threads</code> threads.
+	 */
+	public static ImageProcessor circle(ImageProcessor ip, PeakMask mask,
+			int region, int density, int threads) {
+		return circle(ip, mask, region, density, threads, null);
+	}
+
+	/**
+	 * Same as above, running the bands on <code>executor</code> instead of a
+	 * pool created for the call, unless it is null.
+	 */
+	public static ImageProcessor circle(ImageProcessor ip, PeakMask mask,
+			int region, int density, int threads, ExecutorService executor) {
+		if (density == 1)
+			return ip;
+		int size = 2 * region;
+		int[] spanStart = new int[size];
+		int[] spanEnd = new int[size];
+		diskSpans(region, spanStart, spanEnd);
+		return filter(ip, mask, region, spanStart, spanEnd, density, false,
+				threads, executor);
+	}
+
+	/**
+	 * Keeps the peaks with at least <code>density</code> peaks in the region
+	 * centered on them. Kernel row l of the region centered at (x, y) lies on
+	 * image row y - radius + l, from x - radius + spanStart[l] to x - radius +
+	 * spanEnd[l].
+	 * 
+	 * @param inside
+	 *            clear the peaks whose region is not entirely in the image,
+	 *            instead of counting the part inside
+	 */
+	private static ImageProcessor filter(ImageProcessor ip,
+			final PeakMask mask, final int radius, final int[] spanStart,
+			final int[] spanEnd, final int density, final boolean inside,
+			int threads, ExecutorService executor) {
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		final short[] src = (short[]) ip.getPixels();
+		ImageProcessor ip2 = new ShortProcessor(width, height);
+		final short[] dst = (short[]) ip2.getPixels();
+		final int size = 2 * radius;
+		final int x0 = inside ? radius : 0;
+		final int x1 = inside ? width - radius : width;
+		int y0 = inside ? radius : 0;
+		int y1 = inside ? height - radius : height;
+
+		forEachBand(y0, y1, threads, executor, new Band() {
+			public void run(int from, int to) {
+				for (int y = from; y < to; y++) {
+					int lFrom = Math.max(0, radius - y);
+					int lTo = Math.min(size, height - y + radius);
+					int row = y * mask.wordsPerRow;
+					for (int w = 0; w < mask.wordsPerRow; w++) {
+						long word = mask.bits[row + w];
+						while (word != 0) {
+							int x = (w << 6) + Long.numberOfTrailingZeros(word);
+							word &= word - 1;
+							if (x < x0 || x >= x1)
+								continue;
+							int count = 0;
+							for (int l = lFrom; l < lTo && count < density; l++)
+								count += mask.count(y - radius + l,
+										clamp(x - radius + spanStart[l], width),
+										clamp(x - radius + spanEnd[l], width));
+							if (count >= density)
+								dst[y * width + x] = src[y * width + x];
+						}
+					}
+				}
+			}
+		});
+		return ip2;
+	}
+
+	private interface Band {
+		void run(int from, int to);
+	}
+
+	/**
+	 * Runs the task over the rows <code>from</code> to <code>to - 1</code>,
+	 * split into bands for <code>threads</code> threads on the executor, or
+	 * on a pool created for the call if it is null, unless a single thread
+	 * is used. Bands write disjoint rows of the result.
+	 */
+	private static void forEachBand(int from, int to, int threads,
+			ExecutorService executor, final Band task) {
+		int rows = to - from;
+		if (threads <= 1 && executor == null || rows < 2) {
+			if (rows > 0)
+				task.run(from, to);
+			return;
+		}
+		// Several bands per thread, since peaks are not spread evenly
+		int bands = Math.min(rows, 4 * Math.max(1, threads));
+		ExecutorService pool = executor;
+		if (pool == null)
+			pool = Executors.newFixedThreadPool(Math.min(threads, bands));
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(bands);
+		try {
+			for (int b = 0; b < bands; b++) {
+				final int y0 = from + (int) ((long) rows * b / bands);
+				final int y1 = from + (int) ((long) rows * (b + 1) / bands);
+				futures.add(pool.submit(new Callable<Void>() {
+					public Void call() {
+						task.run(y0, y1);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> f : futures)
+				f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Density filter interrupted");
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			// Bands not started yet are dropped; a shared executor stays up
+			for (Future<Void> f : futures)
+				f.cancel(true);
+			if (pool != executor)
+				pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Fills in, for each row of the 2 * radius mask of an {@link OvalRoi},
+	 * the first and one past the last column inside the oval.
+	 */
+	static void diskSpans(int radius, int[] spanStart, int[] spanEnd) {
+		int size = 2 * radius;
+		ImageProcessor mask = new OvalRoi(0, 0, size, size).getMask();
+		for (int l = 0; l < size; l++) {
+			int start = size, end = 0;
+			for (int k = 0; k < size; k++) {
+				if (mask.getPixel(k, l) > 0) {
+					start = Math.min(start, k);
+					end = k + 1;
+				}
+			}
+			spanStart[l] = Math.min(start, end);
+			spanEnd[l] = end;
+		}
+	}
+
+	private static int clamp(int x, int width) {
+		return x < 0 ? 0 : (x > width ? width : x);
+	}
+}
@@ -0,0 +1,98 @@
+package com.aleadam;
+
+/**
+ * Element-wise loops over whole rows and profiles, written so the server
+ * compiler turns them into SIMD instructions: plain counted loops over
+ * arrays, no branches in the body, and integer min/max. Whether these are
+ * used instead of the original per-element code is decided once at startup
+ * (see {@link #isVectorized()}); both give identical results.
+ */
+class Kernels {
+	private static boolean vectorized = select();
+
+	/**
+	 * The system property <code>peaks.kernels</code> (<code>vector</code> or
+	 * <code>scalar</code>) forces a choice. Otherwise the vector kernels are
+	 * used on the server compiler, the only one that vectorizes loops; with
+	 * the client compiler or the interpreter the plain loops are faster.
+	 */
+	private static boolean select() {
+		String kernels = System.getProperty("peaks.kernels");
+		if (kernels != null)
+			return !kernels.equalsIgnoreCase("scalar");
+		return System.getProperty("java.vm.name", "").contains("Server");
+	}
+
+	static boolean isVectorized() {
+		return vectorized;
+	}
+
+	static void setVectorized(boolean vectorized) {
+		Kernels.vectorized = vectorized;
+	}
+
+	/**
+	 * Whether the threshold can be applied in integer arithmetic, giving the
+	 * same values as the float subtraction of {@link AllProfilesData}.
+	 */
+	static boolean isIntegral(float threshold) {
+		return threshold == (int) threshold && Math.abs(threshold) < (1 << 24);
+	}
+
+	/**
+	 * dest[destOffset + j] = max(0, src[offset + j] - threshold), for
+	 * unsigned 8-bit pixels.
+	 */
+	static void threshold(byte[] src, int offset, int length, int threshold,
+			int[] dest, int destOffset) {
+		for (int j = 0; j < length; j++)
+			dest[destOffset + j] = Math.max(0, (src[offset + j] & 0xff) - threshold);
+	}
+
+	/**
+	 * dest[destOffset + j] = max(0, src[offset + j] - threshold), for
+	 * unsigned 16-bit pixels.
+	 */
+	static void threshold(short[] src, int offset, int length, int threshold,
+			int[] dest, int destOffset) {
+		for (int j = 0; j < length; j++)
+			dest[destOffset + j] = Math.max(0, (src[offset + j] & 0xffff)
+					- threshold);
+	}
+
+	/**
+	 * window[j] = min(T[o + j] .. T[o + j + w - 1]) for j in [0, n - w], by
+	 * the van Herk / Gil-Werman method: the series is cut into blocks of w,
+	 * each block is scanned once forwards and once backwards, and every window,
+	 * which spans at most two blocks, is the min of one backward and one
+	 * forward value. Only the scans are sequential; the final min is an
+	 * element-wise loop.
+	 *
+	 * @param forward
+	 *            scratch of at least n elements
+	 * @param backward
+	 *            scratch of at least n elements
+	 */
+	static void slidingMin(int[] T, int o, int n, int w, int[] forward,
+			int[] backward, int[] window) {
+		// The blocks would never advance
+		if (w <= 0)
+			throw new IllegalArgumentException("Window must be positive: " + w);
+		for (int start = 0; start < n; start += w) {
+			int end = Math.min(n, start + w);
+			int m = Integer.MAX_VALUE;
+			for (int j = start; j < end; j++) {
+				m = Math.min(m, T[o + j]);
+				forward[j] = m;
+			}
+			m = Integer.MAX_VALUE;
+			for (int j = end - 1; j >= start; j--) {
+				m = Math.min(m, T[o + j]);
+				backward[j] = m;
+			}
+		}
+		int count = n - w + 1;
+		for (int j = 0; j < count; j++)
+			window[j] = Math.min(backward[j], forward[j + w - 1]);
+	}
+}
@@ -0,0 +1,169 @@
+package com.aleadam;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+
+/**
+ * A grayscale image read straight from an uncompressed file through memory
+ * mapped buffers, so images larger than the heap can be processed in bands.
+ * 8-bit, unsigned 16-bit and 32-bit float pixels are supported.
+ */
+public class MappedImage implements Closeable {
+	// Largest region of the file mapped at once
+	private static final long MAX_MAP = 1 << 28;
+	// Columns transposed together by readColumns
+	private static final int TILE = 64;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int width, height;
+	private final int fileType;
+	private final int bytesPerPixel;
+	private final long offset;
+	private final ByteOrder order;
+
+	/**
+	 * Maps image <code>image</code> (1-based) of a raw file described by
+	 * <code>fi</code>.
+	 */
+	public MappedImage(File path, FileInfo fi, int image) throws IOException {
+		width = fi.width;
+		height = fi.height;
+		fileType = fi.fileType;
+		if (fileType == FileInfo.GRAY8)
+			bytesPerPixel = 1;
+		else if (fileType == FileInfo.GRAY16_UNSIGNED)
+			bytesPerPixel = 2;
+		else if (fileType == FileInfo.GRAY32_FLOAT)
+			bytesPerPixel = 4;
+		else
+			throw new IOException("Unsupported pixel type in " + path.getName());
+		if (image < 1 || image > Math.max(1, fi.nImages))
+			throw new IOException("No image " + image + " in " + path.getName());
+		offset = fi.getOffset() + (image - 1)
+				* (getImageSize() + fi.gapBetweenImages);
+		order = fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		file = new RandomAccessFile(path, "r");
+		channel = file.getChannel();
+		if (offset + getImageSize() > channel.size()) {
+			close();
+			throw new IOException(path.getName() + " is shorter than its image data");
+		}
+	}
+
+	/**
+	 * Maps image <code>image</code> (1-based) of an uncompressed TIFF file.
+	 */
+	public static MappedImage openTiff(File path, int image) throws IOException {
+		TiffDecoder td = new TiffDecoder(path.getParent(), path.getName());
+		FileInfo[] info = td.getTiffInfo();
+		if (info == null || info.length == 0)
+			throw new IOException("Not a TIFF file: " + path.getName());
+		FileInfo fi = info[0];
+		if (fi.compression > FileInfo.COMPRESSION_NONE)
+			throw new IOException(path.getName() + " is compressed");
+		if (fi.stripOffsets != null && fi.stripLengths != null) {
+			for (int i = 1; i < fi.stripOffsets.length; i++) {
+				if ((fi.stripOffsets[i] & 0xffffffffL) != (fi.stripOffsets[i - 1] & 0xffffffffL)
+						+ (fi.stripLengths[i - 1] & 0xffffffffL))
+					throw new IOException("Strips of " + path.getName()
+							+ " are not contiguous");
+			}
+		}
+		return new MappedImage(path, fi, image);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getBitDepth() {
+		return 8 * bytesPerPixel;
+	}
+
+	private long getImageSize() {
+		return (long) width * height * bytesPerPixel;
+	}
+
+	/**
+	 * Reads <code>rows</code> rows from <code>y</code> into <code>dest</code>,
+	 * one after the other, subtracting the threshold as
+	 * {@link AllProfilesData} does.
+	 */
+	public void readRows(int y, int rows, float threshold, int[] dest)
+			throws IOException {
+		int rowsPerMap = (int) Math.max(1, MAX_MAP / ((long) width * bytesPerPixel));
+		for (int r = 0; r < rows; r += rowsPerMap) {
+			int n = Math.min(rowsPerMap, rows - r);
+			ByteBuffer buf = map(y + r, n);
+			read(buf, 0, n * width, threshold, dest, r * width, 1);
+		}
+	}
+
+	/**
+	 * Reads the columns <code>x</code> to <code>x + columns - 1</code> into
+	 * <code>dest</code>, one after the other, each <code>height</code> long.
+	 * The whole image is scanned once, a block of rows at a time, and each
+	 * block is transposed <code>TILE</code> columns at a time so the columns
+	 * being written stay in cache.
+	 */
+	public void readColumns(int x, int columns, float threshold, int[] dest)
+			throws IOException {
+		int rowsPerMap = (int) Math.max(1, MAX_MAP / ((long) width * bytesPerPixel));
+		for (int y = 0; y < height; y += rowsPerMap) {
+			int n = Math.min(rowsPerMap, height - y);
+			ByteBuffer buf = map(y, n);
+			for (int c = 0; c < columns; c += TILE) {
+				int count = Math.min(TILE, columns - c);
+				for (int r = 0; r < n; r++)
+					read(buf, r * width + x + c, count, threshold, dest, c
+							* height + y + r, height);
+			}
+		}
+	}
+
+	private ByteBuffer map(int y, int rows) throws IOException {
+		long rowBytes = (long) width * bytesPerPixel;
+		MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+				offset + y * rowBytes, rows * rowBytes);
+		buf.order(order);
+		return buf;
+	}
+
+	/**
+	 * Copies <code>count</code> pixels from pixel <code>index</code> of the
+	 * buffer to <code>dest</code>, <code>step</code> apart.
+	 */
+	private void read(ByteBuffer buf, int index, int count, float threshold,
+			int[] dest, int destOffset, int step) {
+		if (fileType == FileInfo.GRAY8) {
+			for (int j = 0, i = destOffset; j < count; j++, i += step)
+				dest[i] = (int) Math.max(0, (buf.get(index + j) & 0xff) - threshold);
+		} else if (fileType == FileInfo.GRAY16_UNSIGNED) {
+			for (int j = 0, i = destOffset; j < count; j++, i += step)
+				dest[i] = (int) Math.max(0, (buf.getShort(2 * (index + j)) & 0xffff)
+						- threshold);
+		} else {
+			for (int j = 0, i = destOffset; j < count; j++, i += step)
+				dest[i] = (int) Math.max(0, (double) buf.getFloat(4 * (index + j))
+						- threshold);
+		}
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+}
@@ -0,0 +1,193 @@
+package com.aleadam;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ij.IJ;
+import ij.measure.ResultsTable;
+
+/**
+ * Process-wide timers and counters of the pipeline stages. Disabled by
+ * default; while disabled {@link #start()} and the recording methods return
+ * at once, so instrumented code costs one field read per call.
+ * <p>
+ * Per-profile work is accumulated by each {@link PeakDetector} and added here
+ * once per chunk of profiles, so the shared counters are not contended.
+ */
+public class Metrics {
+
+	public enum Stage {
+		EXTRACTION("Profile extraction"), SPIKINESS("Spikiness"), SELECTION(
+				"Peak selection and pruning"), COLLECTION("Peak collection"), DENSITY_FILTER(
+				"Density filter"), STATISTICS("Statistics"), SAVING("Saving");
+
+		public final String label;
+
+		Stage(String label) {
+			this.label = label;
+		}
+	}
+
+	public enum Counter {
+		PROFILES("Profiles processed"), CANDIDATES("Candidate peaks"), PRUNED(
+				"Pruned peaks"), PEAKS("Peaks kept"), PIXELS_FILTERED(
+				"Pixels filtered"), BYTES_WRITTEN("Bytes written");
+
+		public final String label;
+
+		Counter(String label) {
+			this.label = label;
+		}
+	}
+
+	private static volatile boolean enabled;
+	private static final AtomicLongArray nanos = new AtomicLongArray(
+			Stage.values().length);
+	private static final AtomicLongArray calls = new AtomicLongArray(
+			Stage.values().length);
+	private static final AtomicLongArray counters = new AtomicLongArray(
+			Counter.values().length);
+
+	public static void setEnabled(boolean enabled) {
+		Metrics.enabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return the current time to pass to {@link #stop(Stage, long)}, or 0 if
+	 *         metrics are disabled.
+	 */
+	public static long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Records one call of a stage that began at <code>start</code>.
+	 */
+	public static void stop(Stage stage, long start) {
+		if (enabled && start != 0)
+			time(stage, System.nanoTime() - start, 1);
+	}
+
+	/**
+	 * Records time already measured, e.g. summed over many profiles.
+	 */
+	public static void time(Stage stage, long elapsed, long count) {
+		if (!enabled)
+			return;
+		nanos.addAndGet(stage.ordinal(), elapsed);
+		calls.addAndGet(stage.ordinal(), count);
+	}
+
+	public static void count(Counter counter, long n) {
+		if (enabled && n != 0)
+			counters.addAndGet(counter.ordinal(), n);
+	}
+
+	public static void reset() {
+		for (int i = 0; i < nanos.length(); i++) {
+			nanos.set(i, 0);
+			calls.set(i, 0);
+		}
+		for (int i = 0; i < counters.length(); i++)
+			counters.set(i, 0);
+	}
+
+	/** Total time of a stage in milliseconds, summed over all threads. */
+	public static double getMillis(Stage stage) {
+		return nanos.get(stage.ordinal()) / 1e6;
+	}
+
+	public static long getCalls(Stage stage) {
+		return calls.get(stage.ordinal());
+	}
+
+	public static long getCount(Counter counter) {
+		return counters.get(counter.ordinal());
+	}
+
+	/**
+	 * Writes the timers and counters to the ImageJ log.
+	 */
+	public static void log() {
+		IJ.log("Stage timings (ms, summed over threads):");
+		for (Stage s : Stage.values())
+			IJ.log("  " + s.label + ": " + IJ.d2s(getMillis(s), 2) + " ("
+					+ getCalls(s) + " calls)");
+		for (Counter c : Counter.values())
+			IJ.log("  " + c.label + ": " + getCount(c));
+	}
+
+	/**
+	 * One row per stage and counter, with the time in ms (empty for
+	 * counters) and the call count or counter value.
+	 */
+	public static ResultsTable toResultsTable() {
+		ResultsTable rt = new ResultsTable();
+		for (Stage s : Stage.values()) {
+			rt.incrementCounter();
+			rt.addValue("Metric", s.label);
+			rt.addValue("Time (ms)", getMillis(s));
+			rt.addValue("Count", getCalls(s));
+		}
+		for (Counter c : Counter.values()) {
+			rt.incrementCounter();
+			rt.addValue("Metric", c.label);
+			rt.addValue("Time (ms)", Double.NaN);
+			rt.addValue("Count", getCount(c));
+		}
+		return rt;
+	}
+
+	public static String toJson() {
+		StringBuilder sb = new StringBuilder("{\n  \"stages\": {");
+		Stage[] stages = Stage.values();
+		for (int i = 0; i < stages.length; i++) {
+			sb.append(i == 0 ? "\n" : ",\n");
+			sb.append("    \"").append(key(stages[i].name())).append("\": {\"ms\": ")
+					.append(getMillis(stages[i])).append(", \"calls\": ")
+					.append(getCalls(stages[i])).append('}');
+		}
+		sb.append("\n  },\n  \"counters\": {");
+		Counter[] counters = Counter.values();
+		for (int i = 0; i < counters.length; i++) {
+			sb.append(i == 0 ? "\n" : ",\n");
+			sb.append("    \"").append(key(counters[i].name())).append("\": ")
+					.append(getCount(counters[i]));
+		}
+		return sb.append("\n  }\n}\n").toString();
+	}
+
+	public static String toCsv() {
+		StringBuilder sb = new StringBuilder("Metric,Time (ms),Count\n");
+		for (Stage s : Stage.values())
+			sb.append(key(s.name())).append(',').append(getMillis(s))
+					.append(',').append(getCalls(s)).append('\n');
+		for (Counter c : Counter.values())
+			sb.append(key(c.name())).append(",,").append(getCount(c))
+					.append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * Saves the metrics as JSON, or as CSV if the file name ends in .csv.
+	 */
+	public static void save(String path) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(new File(path)));
+		try {
+			writer.write(path.toLowerCase().endsWith(".csv") ? toCsv() : toJson());
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static String key(String name) {
+		return name.toLowerCase();
+	}
+}
@@ -0,0 +1,314 @@
+package com.aleadam;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Macro;
+import ij.Prefs;
+import ij.measure.ResultsTable;
+import ij.process.ImageProcessor;
+
+/**
+ * Runs the peak analysis of one image with every combination of a grid of
+ * settings, sharing the stages each setting does not affect (as
+ * {@link PreviewCache} does for one change at a time): the profiles are
+ * extracted once per threshold, the spikiness computed once per peak width,
+ * each stringency selects peaks from the cached spikiness, mean and std, and
+ * every density filter setting starts from the raw peak image of its
+ * stringency.
+ * <p>
+ * Detection is split over the profiles and the density filters and their
+ * statistics run as separate tasks, all on one pool, so the filters of one
+ * stringency overlap with the selection of the next.
+ * <p>
+ * From the command line:
+ *
+ * <pre>
+ * java -cp ij.jar:MultipleProfilePeaks.jar com.aleadam.ParameterSweep \
+ *     image output.csv [peaks=10,20] [stringencies=1,2,3] [thresholds=0] \
+ *     [filters=none,circle,square] [regions=5] [densities=1] [channel=1] [threads=n]
+ * </pre>
+ */
+public class ParameterSweep {
+
+	/**
+	 * The statistics of one combination of settings.
+	 */
+	public static class Result {
+		public final PeakParameters params;
+		/** Statistics of the peak image after the density filter. */
+		public final PeakStatistics stats;
+		/** Maximum of the raw peaks, before the density filter. */
+		public final int maxPeak;
+
+		Result(PeakParameters params, PeakStatistics stats, int maxPeak) {
+			this.params = params;
+			this.stats = stats;
+			this.maxPeak = maxPeak;
+		}
+	}
+
+	private ImageProcessor ip;
+	private String name;
+	private int[] peakWidths = { PeakParameters.DEFAULT_PEAK_WIDTH };
+	private float[] stringencies = { PeakParameters.DEFAULT_STRINGENCY };
+	private int[] thresholds = { PeakParameters.DEFAULT_THRESHOLD };
+	private int[] regionTypes = { PeakParameters.DEFAULT_REGION_TYPE };
+	private int[] regions = { PeakParameters.DEFAULT_REGION };
+	private int[] densities = { PeakParameters.DEFAULT_DENSITY };
+	private int threads = Prefs.getThreads();
+	private List<Result> results;
+
+	public ParameterSweep(ImageProcessor ip, String name) {
+		this.ip = ip;
+		this.name = name;
+	}
+
+	/**
+	 * Reads the grid from an options string as in the usage above. Keys not
+	 * given keep a single default value.
+	 */
+	public static ParameterSweep fromOptions(ImageProcessor ip, String name,
+			String options) {
+		ParameterSweep sweep = new ParameterSweep(ip, name);
+		sweep.peakWidths = PeakParameters.getInts(options, "peaks",
+				sweep.peakWidths);
+		sweep.stringencies = PeakParameters.getFloats(options, "stringencies",
+				sweep.stringencies);
+		sweep.thresholds = PeakParameters.getInts(options, "thresholds",
+				sweep.thresholds);
+		sweep.regions = PeakParameters.getInts(options, "regions",
+				sweep.regions);
+		sweep.densities = PeakParameters.getInts(options, "densities",
+				sweep.densities);
+		String filters = Macro.getValue(options, "filters", null);
+		if (filters != null) {
+			String[] parts = filters.split(",");
+			sweep.regionTypes = new int[parts.length];
+			for (int i = 0; i < parts.length; i++)
+				sweep.regionTypes[i] = PeakParameters.parseRegionType(parts[i]);
+		}
+		String threads = Macro.getValue(options, "threads", null);
+		if (threads != null)
+			sweep.setThreads(Integer.parseInt(threads));
+		sweep.validate();
+		return sweep;
+	}
+
+	public void setPeakWidths(int... peakWidths) {
+		this.peakWidths = peakWidths;
+	}
+
+	public void setStringencies(float... stringencies) {
+		this.stringencies = stringencies;
+	}
+
+	public void setThresholds(int... thresholds) {
+		this.thresholds = thresholds;
+	}
+
+	/**
+	 * Density filters to try, as indices of
+	 * {@link PeakParameters#REGION_TYPES}. Each circle and square filter is
+	 * tried with every region size and density; no filter is tried once.
+	 */
+	public void setRegionTypes(int... regionTypes) {
+		this.regionTypes = regionTypes;
+	}
+
+	public void setRegions(int... regions) {
+		this.regions = regions;
+	}
+
+	public void setDensities(int... densities) {
+		this.densities = densities;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Number of combinations of settings, the number of results.
+	 */
+	public int size() {
+		return thresholds.length * peakWidths.length * stringencies.length
+				* filterSettings(new PeakParameters()).size();
+	}
+
+	/**
+	 * Checks every combination against the ranges of
+	 * {@link PeakParameters#validate(int)}, with the maximum intensity of the
+	 * image. Unlike the dialog, settings out of range are not clamped, since
+	 * a sweep would then repeat the same setting under another name.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             naming the first combination out of range
+	 */
+	public void validate() {
+		int maxInt = (int) ip.getMax();
+		for (int threshold : thresholds) {
+			for (int peakWidth : peakWidths) {
+				for (float stringency : stringencies) {
+					PeakParameters p = new PeakParameters();
+					p.peakWidth = peakWidth;
+					p.stringency = stringency;
+					p.threshold = threshold;
+					for (PeakParameters f : filterSettings(p)) {
+						PeakParameters valid = f.copy();
+						valid.validate(maxInt);
+						if (!valid.toOptions().equals(f.toOptions()))
+							throw new IllegalArgumentException("Settings out of range: "
+									+ f + " (nearest valid: " + valid + ")");
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Analyzes every combination, after checking them with
+	 * {@link #validate()}.
+	 *
+	 * @return one result per combination, ordered by threshold, peak width,
+	 *         stringency and then filter settings as given.
+	 */
+	public List<Result> run() throws InterruptedException {
+		validate();
+		List<Future<Result>> futures = new ArrayList<Future<Result>>(size());
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for (int threshold : thresholds) {
+				AllProfilesData data = new AllProfilesData(new ImagePlus(name,
+						ip), name, peakWidths[0], stringencies[0], threshold);
+				data.setThreads(threads);
+				data.setExecutor(pool);
+				for (int peakWidth : peakWidths) {
+					Spikiness spikiness = data.computeSpikiness(peakWidth);
+					for (float stringency : stringencies) {
+						final ImageProcessor raw = data.process(spikiness,
+								stringency);
+						final PeakMask mask = data.getMask();
+						final int maxPeak = data.getMaxPeak();
+						PeakParameters p = new PeakParameters();
+						p.peakWidth = peakWidth;
+						p.stringency = stringency;
+						p.threshold = threshold;
+						for (final PeakParameters f : filterSettings(p)) {
+							futures.add(pool.submit(new Callable<Result>() {
+								public Result call() {
+									ImageProcessor peaks = PeakAnalysis
+											.densityFilter(raw, mask, f, 1);
+									return new Result(f, new PeakStatistics(
+											(short[]) peaks.getPixels()),
+											maxPeak);
+								}
+							}));
+						}
+					}
+				}
+			}
+			results = new ArrayList<Result>(futures.size());
+			for (Future<Result> f : futures)
+				results.add(f.get());
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		return results;
+	}
+
+	/**
+	 * Copies of <code>p</code> with each density filter setting.
+	 */
+	private List<PeakParameters> filterSettings(PeakParameters p) {
+		List<PeakParameters> settings = new ArrayList<PeakParameters>();
+		for (int regionType : regionTypes) {
+			if (regionType == 2) {
+				PeakParameters f = p.copy();
+				f.regionType = 2;
+				settings.add(f);
+				continue;
+			}
+			for (int region : regions) {
+				for (int density : densities) {
+					PeakParameters f = p.copy();
+					f.regionType = regionType;
+					f.region = region;
+					f.density = density;
+					settings.add(f);
+				}
+			}
+		}
+		return settings;
+	}
+
+	/**
+	 * The results of the last {@link #run()}.
+	 */
+	public List<Result> getResults() {
+		return results;
+	}
+
+	/**
+	 * One row per combination. Region and density are empty without a
+	 * density filter.
+	 */
+	public ResultsTable toResultsTable() {
+		ResultsTable rt = new ResultsTable();
+		for (Result r : results) {
+			PeakParameters p = r.params;
+			boolean filtered = p.regionType != 2;
+			rt.incrementCounter();
+			rt.addValue("Peak width", p.peakWidth);
+			rt.addValue("Stringency", p.stringency);
+			rt.addValue("Threshold", p.threshold);
+			rt.addValue("Filter", PeakParameters.REGION_TYPES[p.regionType]);
+			rt.addValue("Region", filtered ? p.region : Double.NaN);
+			rt.addValue("Density", filtered ? p.density : Double.NaN);
+			rt.addValue("Peaks", r.stats.getPeakCount());
+			rt.addValue("Average", r.stats.getPeakAverage());
+			rt.addValue("StDev", r.stats.getStDev());
+			rt.addValue("Median", r.stats.getPeakMedian());
+			rt.addValue("Min", r.stats.getMinPeak());
+			rt.addValue("Max", r.maxPeak);
+		}
+		return rt;
+	}
+
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		if (args.length < 2) {
+			System.err.println("Usage: ParameterSweep image output.csv [peaks=10,20] "
+					+ "[stringencies=1,2,3] [thresholds=0] [filters=none,circle,square] "
+					+ "[regions=5] [densities=1] [channel=1] [threads=n]");
+			System.exit(1);
+		}
+		StringBuilder options = new StringBuilder();
+		for (int i = 2; i < args.length; i++)
+			options.append(args[i]).append(' ');
+		ImagePlus imp = IJ.openImage(args[0]);
+		if (imp == null || imp.getBitDepth() == 24) {
+			System.err.println("Not a grayscale image: " + args[0]);
+			System.exit(1);
+		}
+		PeakParameters params = PeakParameters.fromOptions(options.toString());
+		params.channel = Math.max(1, Math.min(params.channel, imp.getNChannels()));
+		ImageProcessor ip = imp.getStack().getProcessor(params.stackIndex(imp));
+		ParameterSweep sweep = fromOptions(ip, new File(args[0]).getName(),
+				options.toString());
+		sweep.run();
+		ResultWriter.saveSweep(sweep, args[1]);
+		System.exit(0);
+	}
+}
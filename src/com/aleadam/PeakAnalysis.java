@@ -0,0 +1,97 @@
+package com.aleadam;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+/**
+ * Peak detection followed by the density filter on a single image plane.
+ */
+public class PeakAnalysis {
+	public final AllProfilesData data;
+	/** The peak image after the density filter. */
+	public final ImageProcessor peaks;
+	/** Maximum of the peaks before the density filter. */
+	public final int maxPeak;
+
+	PeakAnalysis(AllProfilesData data, ImageProcessor peaks) {
+		this(data, peaks, data.getMaxPeak());
+	}
+
+	/**
+	 * @param data
+	 *            null for results read from a {@link ResultCache}
+	 */
+	PeakAnalysis(AllProfilesData data, ImageProcessor peaks, int maxPeak) {
+		this.data = data;
+		this.peaks = peaks;
+		this.maxPeak = maxPeak;
+	}
+
+	/**
+	 * @param threads
+	 *            threads used for peak detection; use 1 when several planes
+	 *            are already processed concurrently.
+	 */
+	public static PeakAnalysis analyze(ImageProcessor ip, String name,
+			PeakParameters params, int threads) {
+		AllProfilesData pd = new AllProfilesData(new ImagePlus(name, ip), name,
+				params.peakWidth, params.stringency, params.threshold, false);
+		pd.setThreads(threads);
+		// One pool for both stages
+		ExecutorService pool = threads > 1 ? Executors
+				.newFixedThreadPool(threads) : null;
+		try {
+			pd.setExecutor(pool);
+			ImageProcessor raw = pd.process();
+			ImageProcessor peaks = densityFilter(raw, pd.getMask(), params,
+					threads, pool);
+			return new PeakAnalysis(pd, peaks);
+		} finally {
+			if (pool != null)
+				pool.shutdown();
+		}
+	}
+
+	public static ImageProcessor densityFilter(ImageProcessor ip,
+			PeakParameters params) {
+		return densityFilter(ip, null, params, 1);
+	}
+
+	/**
+	 * @param mask
+	 *            the nonzero pixels of <code>ip</code>, or null to find them
+	 */
+	public static ImageProcessor densityFilter(ImageProcessor ip,
+			PeakMask mask, PeakParameters params, int threads) {
+		return densityFilter(ip, mask, params, threads, null);
+	}
+
+	/**
+	 * @param executor
+	 *            runs the filter instead of a pool created for the call,
+	 *            unless it is null; see {@link DensityFilter}
+	 */
+	public static ImageProcessor densityFilter(ImageProcessor ip,
+			PeakMask mask, PeakParameters params, int threads,
+			ExecutorService executor) {
+		if (params.regionType == 2 || params.density == 1)
+			return ip;
+		long start = Metrics.start();
+		if (mask == null)
+			mask = PeakMask.of(ip);
+		ImageProcessor filtered;
+		if (params.regionType == 0)
+			filtered = DensityFilter.circle(ip, mask, params.region,
+					params.density, threads, executor);
+		else
+			filtered = DensityFilter.square(ip, mask, params.region,
+					params.density, threads, executor);
+		Metrics.stop(Metrics.Stage.DENSITY_FILTER, start);
+		Metrics.count(Metrics.Counter.PIXELS_FILTERED,
+				(long) ip.getWidth() * ip.getHeight());
+		return filtered;
+	}
+}
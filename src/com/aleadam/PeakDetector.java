@@ -1,6 +1,6 @@
 package com.aleadam;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Slightly modified from: 
@@ -29,12 +29,70 @@ import java.util.ArrayList;
 public class PeakDetector {
 
 	private int[] T;
+	private int offset;
+	private int length;
+	private boolean slidingWindow = true;
+
+	// Scratch buffers, grown on demand and reused across calls
+	private float[] S = new float[0];
+	private int[] deque = new int[0];
+	private int[] candidates = new int[0];
+	private int[] peaks = new int[0];
+	private int[] window = new int[0];
+	private float mean, std;
+
+	// Work done since the last flushMetrics()
+	private long profileCount, candidateCount, peakCount, spikinessCount;
+	private long spikinessNanos, selectionNanos;
+
+	/**
+	 * Create a reusable peak detector. Time series are passed to
+	 * {@link #process(int[], int, int, int, float, int[])}, and the scratch
+	 * buffers are kept between calls, so a single instance should be used per
+	 * thread.
+	 */
+	public PeakDetector() {
+	}
 
 	/**
 	 * Create a peak detector for the given time series.
 	 */
 	public PeakDetector(final int[] timeSeries) {
-		this.T = timeSeries;
+		this(timeSeries, 0, timeSeries.length);
+	}
+
+	/**
+	 * Create a peak detector for the time series stored in
+	 * <code>data[offset]</code> to <code>data[offset + length - 1]</code>.
+	 * Returned peak locations are relative to <code>offset</code>.
+	 */
+	public PeakDetector(final int[] data, final int offset, final int length) {
+		this.T = data;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * Selects how the spikiness function is computed: with sliding-window
+	 * minima in O(n) (the default), or with the original O(n * windowSize)
+	 * scan of every neighbor. Both give identical values. The sliding-window
+	 * minima use the blocked, vectorizable method of {@link Kernels} when
+	 * that is enabled, and a monotonic deque otherwise.
+	 */
+	public void setSlidingWindow(final boolean slidingWindow) {
+		this.slidingWindow = slidingWindow;
+	}
+
+	/**
+	 * Return the spikiness function of the time series set at creation, using
+	 * the implementation selected by {@link #setSlidingWindow(boolean)}.
+	 * Values within <code>windowSize</code> of either end are 0.
+	 */
+	public float[] spikiness(final int windowSize) {
+		ensureCapacity(length);
+		float[] S = new float[length];
+		computeSpikiness(T, offset, length, windowSize, S, 0);
+		return S;
 	}
 
 	/**
@@ -54,30 +112,69 @@ public class PeakDetector {
 	 *         index of the peak in the time series array.
 	 */
 	public int[] process(final int windowSize, final float stringency) {
+		ensureCapacity(length);
+		int n = process(T, offset, length, windowSize, stringency, peaks);
+		return Arrays.copyOf(peaks, n);
+	}
+
+	/**
+	 * Detect the peaks of the time series stored in <code>data[offset]</code>
+	 * to <code>data[offset + length - 1]</code> without allocating, apart from
+	 * growing the scratch buffers the first time a longer series is seen.
+	 * 
+	 * @param peakLocations
+	 *            receives the peak locations, relative to <code>offset</code>.
+	 *            Must hold at least <code>length</code> elements.
+	 * @return the number of peaks written to <code>peakLocations</code>.
+	 * @see #process(int, float)
+	 */
+	public int process(final int[] data, final int offset, final int length,
+			final int windowSize, final float stringency,
+			final int[] peakLocations) {
+		ensureCapacity(length);
+		long start = Metrics.start();
 
 		// Compute peak function values
-		float[] S = new float[T.length];
-		float maxLeft, maxRight;
-		for (int i = windowSize; i < S.length - windowSize; i++) {
+		computeSpikiness(data, offset, length, windowSize, S, 0);
 
-			maxLeft = T[i] - T[i - 1];
-			maxRight = T[i] - T[i + 1];
-			for (int j = 2; j <= windowSize; j++) {
-				if (T[i] - T[i - j] > maxLeft)
-					maxLeft = T[i] - T[i - j];
-				if (T[i] - T[i + j] > maxRight)
-					maxRight = T[i] - T[i + j];
-			}
-			S[i] = 0.5f * (maxRight + maxLeft);
+		// Compute mean and std of peak function
+		moments(S, 0, length);
 
-		}
+		spikinessCount++;
+		if (start != 0)
+			spikinessNanos += System.nanoTime() - start;
+		return select(data, offset, length, S, 0, mean, std, windowSize,
+				stringency, peakLocations);
+	}
 
-		// Compute mean and std of peak function
+	/**
+	 * Writes the spikiness function of <code>data[offset]</code> to
+	 * <code>data[offset + length - 1]</code> into <code>dest[destOffset]</code>
+	 * onwards. Together with {@link #moments(float[], int, int)} and
+	 * {@link #select(int[], int, int, float[], int, float, float, int, float, int[])}
+	 * this splits {@link #process(int[], int, int, int, float, int[])} in
+	 * stages whose results can be kept, e.g. to try several stringencies.
+	 */
+	public void spikiness(final int[] data, final int offset, final int length,
+			final int windowSize, final float[] dest, final int destOffset) {
+		ensureCapacity(length);
+		long start = Metrics.start();
+		computeSpikiness(data, offset, length, windowSize, dest, destOffset);
+		spikinessCount++;
+		if (start != 0)
+			spikinessNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Computes the mean and standard deviation of a spikiness function, which
+	 * are then returned by {@link #getMean()} and {@link #getStd()}.
+	 */
+	public void moments(final float[] S, final int sOffset, final int length) {
 		float mean = 0;
 		int n = 0;
 		float M2 = 0;
 		float delta;
-		for (int i = 0; i < S.length; i++) {
+		for (int i = sOffset; i < sOffset + length; i++) {
 			n = n + 1;
 			delta = S[i] - mean;
 			mean = mean + delta / n;
@@ -85,39 +182,206 @@ public class PeakDetector {
 		}
 
 		float variance = M2 / (n - 1);
-		float std = (float) Math.sqrt(variance);
+		this.mean = mean;
+		this.std = (float) Math.sqrt(variance);
+	}
+
+	/**
+	 * The spikiness function computed by the last call to
+	 * {@link #process(int[], int, int, int, float, int[])}, from index 0.
+	 * Overwritten by the next call.
+	 */
+	float[] getSpikiness() {
+		return S;
+	}
 
-		// Collect only large peaks
-		ArrayList<Integer> peakLocations = new ArrayList<Integer>();
-		for (int i = 0; i < S.length; i++) {
-			if (S[i] > 0 && (S[i] - mean) > stringency * std) {
-				peakLocations.add(i);
+	public float getMean() {
+		return mean;
+	}
+
+	public float getStd() {
+		return std;
+	}
+
+	/**
+	 * Selects the peaks from a precomputed spikiness function and its mean and
+	 * standard deviation.
+	 * 
+	 * @return the number of peaks written to <code>peakLocations</code>.
+	 */
+	public int select(final int[] data, final int offset, final int length,
+			final float[] S, final int sOffset, final float mean,
+			final float std, final int windowSize, final float stringency,
+			final int[] peakLocations) {
+		ensureCapacity(length);
+		long start = Metrics.start();
+
+		// Collect only large peaks. Every index is written and the count only
+		// advances for candidates, so the loop has no unpredictable branch
+		int nCandidates = 0;
+		float limit = stringency * std;
+		for (int i = 0; i < length; i++) {
+			float s = S[sOffset + i];
+			candidates[nCandidates] = i;
+			nCandidates += s > 0 && (s - mean) > limit ? 1 : 0;
+		}
+
+		// Remove peaks too close: of each pair of neighbors closer than
+		// windowSize the weaker one is dropped, in a single pass
+		int nPeaks = 0;
+		boolean pruneCurrent = false;
+		for (int k = 0; k < nCandidates; k++) {
+			boolean pruneNext = false;
+			if (k + 1 < nCandidates) {
+				int peak1 = candidates[k];
+				int peak2 = candidates[k + 1];
+				if (peak2 - peak1 < windowSize) {
+					// Too close, prune the smallest one
+					if (data[offset + peak2] > data[offset + peak1])
+						pruneCurrent = true;
+					else
+						pruneNext = true;
+				}
 			}
+			if (!pruneCurrent)
+				peakLocations[nPeaks++] = candidates[k];
+			pruneCurrent = pruneNext;
 		}
+		profileCount++;
+		candidateCount += nCandidates;
+		peakCount += nPeaks;
+		if (start != 0)
+			selectionNanos += System.nanoTime() - start;
+		return nPeaks;
+	}
 
-		// Remove peaks too close
-		ArrayList<Integer> toPrune = new ArrayList<Integer>();
-		int peak1, peak2, weakerPeak;
-		for (int i = 0; i < peakLocations.size() - 1; i++) {
-			peak1 = peakLocations.get(i);
-			peak2 = peakLocations.get(i + 1);
-
-			if (peak2 - peak1 < windowSize) {
-				// Too close, prune the smallest one
-				if (T[peak2] > T[peak1])
-					weakerPeak = peak1;
-				else
-					weakerPeak = peak2;
-				toPrune.add(weakerPeak);
+	/**
+	 * Adds the work done since the last call to {@link Metrics}, if enabled,
+	 * and clears it. Called once per chunk of profiles.
+	 */
+	public void flushMetrics() {
+		Metrics.time(Metrics.Stage.SPIKINESS, spikinessNanos, spikinessCount);
+		Metrics.time(Metrics.Stage.SELECTION, selectionNanos, profileCount);
+		Metrics.count(Metrics.Counter.PROFILES, profileCount);
+		Metrics.count(Metrics.Counter.CANDIDATES, candidateCount);
+		Metrics.count(Metrics.Counter.PRUNED, candidateCount - peakCount);
+		Metrics.count(Metrics.Counter.PEAKS, peakCount);
+		profileCount = candidateCount = peakCount = spikinessCount = 0;
+		spikinessNanos = selectionNanos = 0;
+	}
+
+	/**
+	 * Returns a scratch array of at least <code>length</code> elements that
+	 * can receive the peak locations of
+	 * {@link #process(int[], int, int, int, float, int[])}. It is overwritten
+	 * by {@link #process(int, float)}.
+	 */
+	public int[] peakBuffer(final int length) {
+		ensureCapacity(length);
+		return peaks;
+	}
+
+	private void ensureCapacity(final int length) {
+		if (S.length < length) {
+			S = new float[length];
+			deque = new int[length];
+			candidates = new int[length];
+			peaks = new int[length];
+			window = new int[length];
+		}
+	}
+
+	private void computeSpikiness(final int[] T, final int o, final int n,
+			final int windowSize, final float[] S, final int so) {
+		// Only [windowSize, n - windowSize) is computed, the rest stays 0
+		int lo = Math.min(windowSize, n);
+		int hi = Math.max(lo, n - windowSize);
+		Arrays.fill(S, so, so + lo, 0);
+		Arrays.fill(S, so + hi, so + n, 0);
+		if (slidingWindow && Kernels.isVectorized())
+			spikinessBlocked(T, o, n, windowSize, S, so);
+		else if (slidingWindow)
+			spikinessSlidingWindow(T, o, n, windowSize, S, so);
+		else
+			spikinessNaive(T, o, n, windowSize, S, so);
+	}
+
+	private void spikinessNaive(final int[] T, final int o, final int n,
+			final int windowSize, final float[] S, final int so) {
+		float maxLeft, maxRight;
+		for (int i = windowSize; i < n - windowSize; i++) {
+
+			maxLeft = T[o + i] - T[o + i - 1];
+			maxRight = T[o + i] - T[o + i + 1];
+			for (int j = 2; j <= windowSize; j++) {
+				if (T[o + i] - T[o + i - j] > maxLeft)
+					maxLeft = T[o + i] - T[o + i - j];
+				if (T[o + i] - T[o + i + j] > maxRight)
+					maxRight = T[o + i] - T[o + i + j];
+			}
+			S[so + i] = 0.5f * (maxRight + maxLeft);
+
+		}
+	}
+
+	/**
+	 * The max distance to the left (right) neighbors is T[i] minus the minimum
+	 * of the windowSize values before (after) i, which a monotonic deque of
+	 * indices tracks in amortized O(1) per step.
+	 */
+	private void spikinessSlidingWindow(final int[] T, final int o,
+			final int n, final int windowSize, final float[] S, final int so) {
+		int head = 0, tail = 0;
+
+		// Left pass: window T[i - windowSize .. i - 1], newest index k = i - 1
+		for (int k = 0; k < n - windowSize - 1; k++) {
+			while (tail > head && T[o + deque[tail - 1]] >= T[o + k])
+				tail--;
+			deque[tail++] = k;
+			int i = k + 1;
+			if (i >= windowSize) {
+				while (deque[head] < i - windowSize)
+					head++;
+				S[so + i] = T[o + i] - T[o + deque[head]];
+			}
+		}
+
+		// Right pass: window T[i + 1 .. i + windowSize], newest index k = i + 1
+		head = 0;
+		tail = 0;
+		for (int k = n - 1; k > windowSize; k--) {
+			while (tail > head && T[o + deque[tail - 1]] >= T[o + k])
+				tail--;
+			deque[tail++] = k;
+			int i = k - 1;
+			if (i < n - windowSize) {
+				while (deque[head] > i + windowSize)
+					head++;
+				float maxRight = T[o + i] - T[o + deque[head]];
+				S[so + i] = 0.5f * (maxRight + S[so + i]);
 			}
 		}
-		peakLocations.removeAll(toPrune);
+	}
 
-		// Convert to int[]
-		int[] peakArray = new int[peakLocations.size()];
-		for (int i = 0; i < peakArray.length; i++) {
-			peakArray[i] = peakLocations.get(i);
+	/**
+	 * Same values as {@link #spikinessSlidingWindow}, from the minimum of every
+	 * window of windowSize values: the left window of i starts at
+	 * i - windowSize and the right one at i + 1. The windows minima are
+	 * computed by {@link Kernels#slidingMin}, and the differences in one
+	 * element-wise loop. The deque and candidates buffers serve as scratch.
+	 */
+	private void spikinessBlocked(final int[] T, final int o, final int n,
+			final int windowSize, final float[] S, final int so) {
+		int lo = windowSize;
+		int hi = n - windowSize;
+		if (hi <= lo)
+			return;
+		Kernels.slidingMin(T, o, n, windowSize, deque, candidates, window);
+		final int[] W = window;
+		for (int i = lo; i < hi; i++) {
+			float maxLeft = T[o + i] - W[i - windowSize];
+			float maxRight = T[o + i] - W[i + 1];
+			S[so + i] = 0.5f * (maxRight + maxLeft);
 		}
-		return peakArray;
 	}
 }
\ No newline at end of file
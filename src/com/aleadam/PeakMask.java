@@ -0,0 +1,77 @@
+package com.aleadam;
+
+import ij.process.ImageProcessor;
+
+/**
+ * The pixels of a peak image that hold a peak, one bit per pixel. Each row
+ * starts on a new 64-bit word, with pixel x of the row in bit x % 64 of word
+ * x / 64, so the peaks of any row segment are counted a word at a time with
+ * {@link Long#bitCount(long)}. It takes a sixteenth of the memory of the peak
+ * image.
+ */
+public class PeakMask {
+	public final int width, height;
+	final int wordsPerRow;
+	final long[] bits;
+
+	public PeakMask(int width, int height) {
+		this.width = width;
+		this.height = height;
+		wordsPerRow = (width + 63) >>> 6;
+		bits = new long[wordsPerRow * height];
+	}
+
+	/**
+	 * The nonzero pixels of a 16-bit peak image.
+	 */
+	public static PeakMask of(ImageProcessor peaks) {
+		PeakMask mask = new PeakMask(peaks.getWidth(), peaks.getHeight());
+		short[] pixels = (short[]) peaks.getPixels();
+		int width = mask.width;
+		for (int y = 0; y < mask.height; y++) {
+			int row = y * width;
+			int word = y * mask.wordsPerRow;
+			for (int x = 0; x < width; x++) {
+				if (pixels[row + x] != 0)
+					mask.bits[word + (x >>> 6)] |= 1L << x;
+			}
+		}
+		return mask;
+	}
+
+	public void set(int x, int y) {
+		bits[y * wordsPerRow + (x >>> 6)] |= 1L << x;
+	}
+
+	public boolean get(int x, int y) {
+		return (bits[y * wordsPerRow + (x >>> 6)] & 1L << x) != 0;
+	}
+
+	/**
+	 * Number of peaks in row y from column x0 to x1 - 1.
+	 */
+	public int count(int y, int x0, int x1) {
+		if (x0 >= x1)
+			return 0;
+		int row = y * wordsPerRow;
+		int first = row + (x0 >>> 6);
+		int last = row + ((x1 - 1) >>> 6);
+		// Shifts only use the low 6 bits of the distance
+		long head = -1L << x0;
+		long tail = -1L >>> -x1;
+		if (first == last)
+			return Long.bitCount(bits[first] & head & tail);
+		int count = Long.bitCount(bits[first] & head);
+		for (int w = first + 1; w < last; w++)
+			count += Long.bitCount(bits[w]);
+		return count + Long.bitCount(bits[last] & tail);
+	}
+
+	/** Total number of peaks. */
+	public int count() {
+		int count = 0;
+		for (long word : bits)
+			count += Long.bitCount(word);
+		return count;
+	}
+}
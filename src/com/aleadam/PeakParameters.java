@@ -0,0 +1,238 @@
+package com.aleadam;
+
+import ij.ImagePlus;
+import ij.Macro;
+import ij.gui.GenericDialog;
+
+/**
+ * Settings of a peak detection run, shared by the plugin dialog and the
+ * batch modes.
+ */
+public class PeakParameters {
+	public static final String[] REGION_TYPES = new String[]{"Circle", "Square (faster)", "No filter"};
+
+	/*
+	 * The defaults of every entry point. The plugin dialog starts the
+	 * threshold at 5% of the image maximum instead, as it knows the image.
+	 */
+	public static final int DEFAULT_PEAK_WIDTH = 20;
+	public static final float DEFAULT_STRINGENCY = 1;
+	public static final int DEFAULT_THRESHOLD = 0;
+	public static final int DEFAULT_DENSITY = 1;
+	public static final int DEFAULT_REGION = 5;
+	public static final int DEFAULT_REGION_TYPE = 2;
+	public static final int DEFAULT_CHANNEL = 1;
+
+	/**
+	 * The options read by {@link #fromOptions} with their defaults, for the
+	 * usage messages of the batch modes.
+	 */
+	public static final String USAGE = "[peak=" + DEFAULT_PEAK_WIDTH
+			+ "] [stringency=" + DEFAULT_STRINGENCY + "] [threshold="
+			+ DEFAULT_THRESHOLD + "] [density=" + DEFAULT_DENSITY
+			+ "] [region=" + DEFAULT_REGION
+			+ "] [filter=circle|square|none] [channel=" + DEFAULT_CHANNEL + "]";
+
+	public int peakWidth = DEFAULT_PEAK_WIDTH;
+	public float stringency = DEFAULT_STRINGENCY;
+	public int threshold = DEFAULT_THRESHOLD;
+	public int density = DEFAULT_DENSITY;
+	public int region = DEFAULT_REGION;
+	public int regionType = DEFAULT_REGION_TYPE;
+	public int channel = DEFAULT_CHANNEL;
+
+	public PeakParameters copy() {
+		PeakParameters p = new PeakParameters();
+		p.peakWidth = peakWidth;
+		p.stringency = stringency;
+		p.threshold = threshold;
+		p.density = density;
+		p.region = region;
+		p.regionType = regionType;
+		p.channel = channel;
+		return p;
+	}
+
+	/**
+	 * The stack index of the selected channel of an image, at its current
+	 * slice and frame.
+	 *
+	 * @return the index, from 1, or 0 if the image has fewer channels.
+	 */
+	public int stackIndex(ImagePlus imp) {
+		if (channel < 1 || channel > imp.getNChannels())
+			return 0;
+		return imp.getStackIndex(channel, imp.getSlice(), imp.getFrame());
+	}
+
+	/**
+	 * Adds the fields of the settings, in the order {@link #readFields} reads
+	 * them, to a dialog of the batch modes.
+	 */
+	public static void addFields(GenericDialog gd) {
+		gd.addNumericField("Peak width (2-100)", DEFAULT_PEAK_WIDTH, 0);
+		gd.addNumericField("Stringency (0.05-4.99)", DEFAULT_STRINGENCY, 2);
+		gd.addNumericField("Threshold", DEFAULT_THRESHOLD, 0);
+		gd.addNumericField("Density requirement (1-50)", DEFAULT_DENSITY, 0);
+		gd.addNumericField("Region size (1-20)", DEFAULT_REGION, 0);
+		gd.addChoice("Filter type:", REGION_TYPES, REGION_TYPES[DEFAULT_REGION_TYPE]);
+		gd.addNumericField("Channel", DEFAULT_CHANNEL, 0);
+	}
+
+	/**
+	 * Reads the settings from the next fields of a dialog, added by
+	 * {@link #addFields} or in the same order. Call {@link #validate(int)}
+	 * afterwards.
+	 */
+	public void readFields(GenericDialog gd) {
+		peakWidth = (int) gd.getNextNumber();
+		stringency = (float) gd.getNextNumber();
+		threshold = (int) gd.getNextNumber();
+		density = (int) gd.getNextNumber();
+		region = (int) gd.getNextNumber();
+		regionType = gd.getNextChoiceIndex();
+		channel = (int) gd.getNextNumber();
+	}
+
+	/**
+	 * Clamps every setting to the range offered by the dialog.
+	 */
+	public void validate(int maxInt) {
+		if (peakWidth < 2)
+			peakWidth = 2;
+		if (peakWidth > 100)
+			peakWidth = 100;
+		if (stringency < 0.05)
+			stringency = 0.05F;
+		if (stringency > 4.99)
+			stringency = 4.99F;
+		if (threshold < 0)
+			threshold = 0;
+		if (threshold > maxInt)
+			threshold = maxInt;
+		if (region < 1)
+			region = 1;
+		if (region > 20)
+			region = 20;
+		if (density < 1)
+			density = 1;
+		if (density > 50 || density > region * region)
+			density = Math.min(50, region * region);
+		if (regionType < 0 || regionType >= REGION_TYPES.length)
+			regionType = 2;
+		if (channel < 1)
+			channel = 1;
+	}
+
+	/**
+	 * Reads the settings from a macro-style options string such as
+	 * <code>"peak=20 stringency=1 threshold=100 density=10 region=5 filter=square channel=1"</code>.
+	 * Missing keys keep their default value, see {@link #USAGE}. The filter may be given as
+	 * circle, square or none.
+	 */
+	public static PeakParameters fromOptions(String options) {
+		PeakParameters p = new PeakParameters();
+		if (options == null)
+			return p;
+		p.peakWidth = (int) getNumber(options, "peak", p.peakWidth);
+		p.stringency = (float) getNumber(options, "stringency", p.stringency);
+		p.threshold = (int) getNumber(options, "threshold", p.threshold);
+		p.density = (int) getNumber(options, "density", p.density);
+		p.region = (int) getNumber(options, "region", p.region);
+		p.channel = (int) getNumber(options, "channel", p.channel);
+		String filter = Macro.getValue(options, "filter", null);
+		if (filter != null)
+			p.regionType = parseRegionType(filter);
+		return p;
+	}
+
+	public String toOptions() {
+		String filter = regionType == 0 ? "circle" : regionType == 1 ? "square" : "none";
+		return "peak=" + peakWidth + " stringency=" + stringency + " threshold="
+				+ threshold + " density=" + density + " region=" + region
+				+ " filter=" + filter + " channel=" + channel;
+	}
+
+	public String toString() {
+		return toOptions();
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof PeakParameters))
+			return false;
+		PeakParameters p = (PeakParameters) o;
+		return peakWidth == p.peakWidth
+				&& Float.floatToIntBits(stringency) == Float
+						.floatToIntBits(p.stringency)
+				&& threshold == p.threshold && density == p.density
+				&& region == p.region && regionType == p.regionType
+				&& channel == p.channel;
+	}
+
+	public int hashCode() {
+		int h = peakWidth;
+		h = 31 * h + Float.floatToIntBits(stringency);
+		h = 31 * h + threshold;
+		h = 31 * h + density;
+		h = 31 * h + region;
+		h = 31 * h + regionType;
+		return 31 * h + channel;
+	}
+
+	static int parseRegionType(String s) {
+		s = s.trim().toLowerCase();
+		if (s.startsWith("c") || s.equals("0"))
+			return 0;
+		if (s.startsWith("s") || s.equals("1"))
+			return 1;
+		return 2;
+	}
+
+	/**
+	 * Reads a comma separated list of integers, such as
+	 * <code>peaks=10,20,30</code>.
+	 */
+	static int[] getInts(String options, String key, int[] defaults) {
+		String value = Macro.getValue(options, key, null);
+		if (value == null)
+			return defaults;
+		String[] parts = value.split(",");
+		int[] values = new int[parts.length];
+		try {
+			for (int i = 0; i < parts.length; i++)
+				values[i] = Integer.parseInt(parts[i].trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+		}
+		return values;
+	}
+
+	/**
+	 * Reads a comma separated list of numbers.
+	 */
+	static float[] getFloats(String options, String key, float[] defaults) {
+		String value = Macro.getValue(options, key, null);
+		if (value == null)
+			return defaults;
+		String[] parts = value.split(",");
+		float[] values = new float[parts.length];
+		try {
+			for (int i = 0; i < parts.length; i++)
+				values[i] = Float.parseFloat(parts[i].trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+		}
+		return values;
+	}
+
+	private static double getNumber(String options, String key, double defaultValue) {
+		String value = Macro.getValue(options, key, null);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+		}
+	}
+}
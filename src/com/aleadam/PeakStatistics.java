@@ -0,0 +1,161 @@
+package com.aleadam;
+
+import java.util.Arrays;
+
+/**
+ * Single-pass statistics of peak intensities. Values are fed one at a time
+ * (or a whole peak image at once) and count, mean, variance (Welford), min
+ * and max are updated on the fly. A histogram of the integer intensities
+ * gives the exact median without sorting. Accumulators filled by different
+ * threads can be combined with {@link #merge(PeakStatistics)}.
+ */
+public class PeakStatistics {
+	// Covers 8 and 16-bit intensities; larger ones, only possible from 32-bit
+	// images, are kept aside and sorted when the median is requested
+	private static final int HISTOGRAM_LIMIT = 1 << 16;
+
+	private int count;
+	private double mean, M2;
+	private int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+	private int[] histogram = new int[256];
+	private int[] overflow = new int[0];
+	private int overflowCount;
+
+	public PeakStatistics() {
+	}
+
+	/**
+	 * Statistics of the nonzero pixels of a peak image.
+	 */
+	public PeakStatistics(short[] peakImage) {
+		long start = Metrics.start();
+		addAll(peakImage);
+		Metrics.stop(Metrics.Stage.STATISTICS, start);
+	}
+
+	public void add(int value) {
+		count++;
+		double delta = value - mean;
+		mean += delta / count;
+		M2 += delta * (value - mean);
+		if (value < min)
+			min = value;
+		if (value > max)
+			max = value;
+		if (value >= 0 && value < HISTOGRAM_LIMIT) {
+			if (value >= histogram.length)
+				histogram = Arrays.copyOf(histogram, Math.min(HISTOGRAM_LIMIT,
+						Integer.highestOneBit(value) << 1));
+			histogram[value]++;
+		} else {
+			if (overflowCount == overflow.length)
+				overflow = Arrays.copyOf(overflow, Math.max(16, 2 * overflowCount));
+			overflow[overflowCount++] = value;
+		}
+	}
+
+	/**
+	 * Adds every nonzero pixel of a 16-bit peak image.
+	 */
+	public void addAll(short[] peakImage) {
+		addAll(peakImage, 0, peakImage.length);
+	}
+
+	/**
+	 * Adds the nonzero pixels of part of a peak image.
+	 */
+	public void addAll(short[] peakImage, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			if (peakImage[i] != 0)
+				add(peakImage[i] & 0xffff);
+		}
+	}
+
+	/**
+	 * Adds the values accumulated by <code>other</code> to this one.
+	 */
+	public void merge(PeakStatistics other) {
+		if (other.count == 0)
+			return;
+		int n = count + other.count;
+		double delta = other.mean - mean;
+		mean += delta * other.count / n;
+		M2 += other.M2 + delta * delta * ((double) count * other.count / n);
+		count = n;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+		if (other.histogram.length > histogram.length)
+			histogram = Arrays.copyOf(histogram, other.histogram.length);
+		for (int i = 0; i < other.histogram.length; i++)
+			histogram[i] += other.histogram[i];
+		for (int i = 0; i < other.overflowCount; i++) {
+			if (overflowCount == overflow.length)
+				overflow = Arrays.copyOf(overflow, Math.max(16, 2 * overflowCount));
+			overflow[overflowCount++] = other.overflow[i];
+		}
+	}
+
+	public int getPeakCount() {
+		return count;
+	}
+
+	public float getPeakAverage() {
+		return (float) mean;
+	}
+
+	public float getStDev() {
+		if (count < 2)
+			return 0;
+		return (float) Math.sqrt(M2 / (count - 1));
+	}
+
+	public float getPeakMedian() {
+		if (count == 0)
+			return 0;
+		if (count % 2 == 0)
+			return (valueAtRank(count / 2 - 1) + (float) valueAtRank(count / 2)) / 2;
+		return valueAtRank(count / 2);
+	}
+
+	public float getMaxPeak() {
+		return getMax();
+	}
+
+	public float getMinPeak() {
+		return getMin();
+	}
+
+	public int getMax() {
+		return count == 0 ? 0 : max;
+	}
+
+	public int getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	/**
+	 * The value at the given 0-based rank in ascending order.
+	 */
+	private int valueAtRank(int rank) {
+		// Negative or very large values are outside the histogram
+		int[] sorted = null;
+		int below = 0;
+		if (overflowCount > 0) {
+			sorted = Arrays.copyOf(overflow, overflowCount);
+			Arrays.sort(sorted);
+			while (below < sorted.length && sorted[below] < 0)
+				below++;
+			if (rank < below)
+				return sorted[rank];
+			rank -= below;
+		}
+		int seen = 0;
+		int top = Math.min(histogram.length - 1, max);
+		for (int v = Math.max(0, min); v <= top; v++) {
+			seen += histogram[v];
+			if (seen > rank)
+				return v;
+		}
+		return sorted[below + rank - seen];
+	}
+}
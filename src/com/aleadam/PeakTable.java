@@ -0,0 +1,279 @@
+package com.aleadam;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import ij.gui.Roi;
+import ij.measure.ResultsTable;
+import ij.process.ImageProcessor;
+
+/**
+ * One row per detected peak: its position, intensity, spikiness score and the
+ * orientation of the profile it was found on, each in a primitive array. A
+ * pixel that is a peak of both its row and its column has two rows.
+ * <p>
+ * The peaks are also bucketed in a grid of square cells, so the peaks of a
+ * region or the nearest peak of a point are found by looking at the nearby
+ * cells only.
+ */
+public class PeakTable {
+	/** Found on a row profile. */
+	public static final byte HORIZONTAL = 0;
+	/** Found on a column profile. */
+	public static final byte VERTICAL = 1;
+
+	public final int width, height;
+	private final int size;
+	private final int[] x, y, value;
+	private final float[] score;
+	private final byte[] orientation;
+
+	private final int cellSize, gridWidth, gridHeight;
+	// Peaks of grid cell c are cellPeaks[cellStart[c]] to
+	// cellPeaks[cellStart[c + 1] - 1], cells numbered row by row
+	private final int[] cellStart, cellPeaks;
+
+	private PeakTable(int width, int height, int size) {
+		this.width = width;
+		this.height = height;
+		this.size = size;
+		x = new int[size];
+		y = new int[size];
+		value = new int[size];
+		score = new float[size];
+		orientation = new byte[size];
+		// About two peaks per cell on average
+		long area = (long) width * height;
+		int cell = (int) Math.ceil(Math.sqrt(2.0 * area / Math.max(1, size)));
+		cellSize = Math.max(4, Math.min(cell, Math.max(width, height)));
+		gridWidth = (width + cellSize - 1) / cellSize;
+		gridHeight = (height + cellSize - 1) / cellSize;
+		cellStart = new int[gridWidth * gridHeight + 1];
+		cellPeaks = new int[size];
+	}
+
+	/**
+	 * The peaks found by the last {@link AllProfilesData#process()}, in
+	 * profile order.
+	 *
+	 * @param filtered
+	 *            the peak image after the density filter; only peaks still
+	 *            present in it are kept. If null all peaks are kept.
+	 */
+	public static PeakTable create(AllProfilesData data, ImageProcessor filtered) {
+		CompactPeaks peaks = data.getPeaks();
+		if (peaks == null)
+			throw new IllegalStateException("No peaks before process()");
+		int width = data.width, height = data.height;
+		short[] kept = filtered == null ? null : (short[]) filtered.getPixels();
+
+		int count = peaks.size();
+		if (kept != null) {
+			count = 0;
+			for (int i = 0; i < peaks.getProfileCount(); i++) {
+				for (int k = peaks.start(i); k < peaks.end(i); k++) {
+					int p = peaks.getPosition(k);
+					if (kept[i < height ? i * width + p : p * width + i - height] != 0)
+						count++;
+				}
+			}
+		}
+
+		PeakTable table = new PeakTable(width, height, count);
+		int n = 0;
+		for (int i = 0; i < peaks.getProfileCount(); i++) {
+			boolean row = i < height;
+			for (int k = peaks.start(i); k < peaks.end(i); k++) {
+				int p = peaks.getPosition(k);
+				int px = row ? p : i - height, py = row ? i : p;
+				if (kept != null && kept[py * width + px] == 0)
+					continue;
+				table.x[n] = px;
+				table.y[n] = py;
+				table.value[n] = peaks.getValue(k);
+				table.score[n] = peaks.getScore(k);
+				table.orientation[n] = row ? HORIZONTAL : VERTICAL;
+				n++;
+			}
+		}
+		table.index();
+		return table;
+	}
+
+	/**
+	 * Buckets the peaks by grid cell with a counting sort.
+	 */
+	private void index() {
+		for (int k = 0; k < size; k++)
+			cellStart[cell(x[k], y[k]) + 1]++;
+		for (int c = 0; c < gridWidth * gridHeight; c++)
+			cellStart[c + 1] += cellStart[c];
+		int[] next = Arrays.copyOf(cellStart, cellStart.length - 1);
+		for (int k = 0; k < size; k++)
+			cellPeaks[next[cell(x[k], y[k])]++] = k;
+	}
+
+	private int cell(int px, int py) {
+		return (py / cellSize) * gridWidth + px / cellSize;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getX(int k) {
+		return x[k];
+	}
+
+	public int getY(int k) {
+		return y[k];
+	}
+
+	public int getValue(int k) {
+		return value[k];
+	}
+
+	/** @see CompactPeaks#getScore(int) */
+	public float getScore(int k) {
+		return score[k];
+	}
+
+	/** {@link #HORIZONTAL} or {@link #VERTICAL}. */
+	public byte getOrientation(int k) {
+		return orientation[k];
+	}
+
+	/**
+	 * The peaks within the given rectangle, in grid order.
+	 */
+	public int[] query(int rx, int ry, int rw, int rh) {
+		return query(new Rectangle(rx, ry, rw, rh), null);
+	}
+
+	/**
+	 * The peaks within the given region, such as the outline of a cell, in
+	 * grid order.
+	 */
+	public int[] query(Roi roi) {
+		return query(roi.getBounds(), roi);
+	}
+
+	private int[] query(Rectangle r, Roi roi) {
+		int cx0 = Math.max(0, r.x / cellSize);
+		int cy0 = Math.max(0, r.y / cellSize);
+		int cx1 = Math.min(gridWidth - 1, (r.x + r.width - 1) / cellSize);
+		int cy1 = Math.min(gridHeight - 1, (r.y + r.height - 1) / cellSize);
+		int[] found = new int[16];
+		int n = 0;
+		for (int cy = cy0; cy <= cy1; cy++) {
+			for (int cx = cx0; cx <= cx1; cx++) {
+				int c = cy * gridWidth + cx;
+				for (int j = cellStart[c]; j < cellStart[c + 1]; j++) {
+					int k = cellPeaks[j];
+					if (x[k] < r.x || y[k] < r.y || x[k] >= r.x + r.width
+							|| y[k] >= r.y + r.height)
+						continue;
+					if (roi != null && !roi.contains(x[k], y[k]))
+						continue;
+					if (n == found.length)
+						found = Arrays.copyOf(found, 2 * n);
+					found[n++] = k;
+				}
+			}
+		}
+		return Arrays.copyOf(found, n);
+	}
+
+	/**
+	 * The peak nearest to the point, or -1 if the table is empty.
+	 */
+	public int nearest(double px, double py) {
+		return nearest(px, py, -1);
+	}
+
+	/**
+	 * Distance from peak <code>k</code> to the nearest peak at another
+	 * pixel, or infinity if there is none.
+	 */
+	public double nearestDistance(int k) {
+		int j = nearest(x[k], y[k], k);
+		if (j < 0)
+			return Double.POSITIVE_INFINITY;
+		double dx = x[j] - x[k], dy = y[j] - y[k];
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	/**
+	 * {@link #nearestDistance(int)} of every peak.
+	 */
+	public float[] nearestDistances() {
+		float[] distances = new float[size];
+		for (int k = 0; k < size; k++)
+			distances[k] = (float) nearestDistance(k);
+		return distances;
+	}
+
+	/**
+	 * Searches rings of cells around the point's cell, nearest first, and
+	 * stops once no unvisited cell can hold a closer peak: after ring r every
+	 * unvisited point is at least r cells away.
+	 *
+	 * @param exclude
+	 *            if not -1, peaks at the position of this peak are skipped
+	 */
+	private int nearest(double px, double py, int exclude) {
+		if (size == 0)
+			return -1;
+		int cx = (int) Math.max(0, Math.min(gridWidth - 1, px / cellSize));
+		int cy = (int) Math.max(0, Math.min(gridHeight - 1, py / cellSize));
+		int best = -1;
+		double bestDistance = Double.POSITIVE_INFINITY;
+		int rings = Math.max(gridWidth, gridHeight);
+		for (int r = 0; r <= rings; r++) {
+			for (int gy = cy - r; gy <= cy + r; gy++) {
+				if (gy < 0 || gy >= gridHeight)
+					continue;
+				// Only the border of the ring, the inside was searched already
+				int step = gy == cy - r || gy == cy + r ? 1 : Math.max(1, 2 * r);
+				for (int gx = cx - r; gx <= cx + r; gx += step) {
+					if (gx < 0 || gx >= gridWidth)
+						continue;
+					int c = gy * gridWidth + gx;
+					for (int j = cellStart[c]; j < cellStart[c + 1]; j++) {
+						int k = cellPeaks[j];
+						if (exclude >= 0 && x[k] == x[exclude]
+								&& y[k] == y[exclude])
+							continue;
+						double dx = x[k] - px, dy = y[k] - py;
+						double d = dx * dx + dy * dy;
+						if (d < bestDistance) {
+							bestDistance = d;
+							best = k;
+						}
+					}
+				}
+			}
+			double reach = (double) r * cellSize;
+			if (best >= 0 && bestDistance <= reach * reach)
+				break;
+		}
+		return best;
+	}
+
+	/**
+	 * One row per peak with the columns X, Y, Value, Score and Orientation
+	 * (H or V).
+	 */
+	public ResultsTable toResultsTable() {
+		ResultsTable rt = new ResultsTable();
+		for (int k = 0; k < size; k++) {
+			rt.incrementCounter();
+			rt.addValue("X", x[k]);
+			rt.addValue("Y", y[k]);
+			rt.addValue("Value", value[k]);
+			rt.addValue("Score", score[k]);
+			rt.addValue("Orientation", orientation[k] == HORIZONTAL ? "H" : "V");
+		}
+		return rt;
+	}
+}
@@ -0,0 +1,108 @@
+package com.aleadam;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+/**
+ * Keeps the intermediate results of the last analysis, so that a change of
+ * parameters only recomputes the stages that depend on it:
+ * <ol>
+ * <li>channel, threshold: profile extraction ({@link AllProfilesData})</li>
+ * <li>peak width: spikiness function, mean and std ({@link Spikiness})</li>
+ * <li>stringency: peak selection and the raw peak image</li>
+ * <li>density, region, region type: the density filter</li>
+ * </ol>
+ */
+public class PreviewCache {
+	// Each stage records the parameters it was computed with, so that an
+	// update interrupted halfway leaves the cache consistent
+	private AllProfilesData data;
+	private int dataIndex, dataThreshold;
+	private Spikiness spikiness;
+	private ImageProcessor rawPeaks;
+	private PeakMask rawMask;
+	private float rawStringency;
+	private ImageProcessor peaks;
+	private int peaksDensity, peaksRegion, peaksRegionType;
+	// Shared by the updates, instead of a pool for each stage of each one
+	private ThreadPoolExecutor pool;
+
+	/**
+	 * Returns the analysis of the selected channel of <code>imp</code>,
+	 * reusing whatever previous calls computed with the same upstream
+	 * parameters. If the calling thread is interrupted the update stops with
+	 * an exception, keeping the stages already completed.
+	 */
+	public synchronized PeakAnalysis update(ImagePlus imp, String name,
+			PeakParameters params, int threads) {
+		PeakParameters p = params.copy();
+		int index = p.stackIndex(imp);
+		if (data == null || index != dataIndex
+				|| p.threshold != dataThreshold) {
+			spikiness = null;
+			rawPeaks = null;
+			peaks = null;
+			data = null;
+			ImageProcessor ip = imp.getStack().getProcessor(index);
+			data = new AllProfilesData(new ImagePlus(name, ip), name,
+					p.peakWidth, p.stringency, p.threshold);
+			dataIndex = index;
+			dataThreshold = p.threshold;
+		}
+		data.setThreads(threads);
+		data.setExecutor(pool(threads));
+		if (spikiness == null || p.peakWidth != spikiness.peakWidth) {
+			rawPeaks = null;
+			peaks = null;
+			spikiness = null;
+			spikiness = data.computeSpikiness(p.peakWidth);
+		}
+		if (rawPeaks == null || p.stringency != rawStringency) {
+			peaks = null;
+			rawPeaks = null;
+			rawPeaks = data.process(spikiness, p.stringency);
+			rawMask = data.getMask();
+			rawStringency = p.stringency;
+		}
+		if (peaks == null || p.density != peaksDensity
+				|| p.region != peaksRegion || p.regionType != peaksRegionType) {
+			peaks = null;
+			peaks = PeakAnalysis.densityFilter(rawPeaks, rawMask, p, threads,
+					pool(threads));
+			peaksDensity = p.density;
+			peaksRegion = p.region;
+			peaksRegionType = p.regionType;
+		}
+		return new PeakAnalysis(data, peaks);
+	}
+
+	/**
+	 * The pool of <code>threads</code> threads, or null for one. Its threads
+	 * end once idle, so the cache needs no disposing.
+	 */
+	private ExecutorService pool(int threads) {
+		if (threads <= 1)
+			return null;
+		if (pool == null || pool.getMaximumPoolSize() != threads) {
+			if (pool != null)
+				pool.shutdown();
+			pool = new ThreadPoolExecutor(threads, threads, 10,
+					TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+			pool.allowCoreThreadTimeOut(true);
+		}
+		return pool;
+	}
+
+	public synchronized void clear() {
+		data = null;
+		spikiness = null;
+		rawPeaks = null;
+		rawMask = null;
+		peaks = null;
+	}
+}
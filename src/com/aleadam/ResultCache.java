@@ -0,0 +1,284 @@
+package com.aleadam;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import ij.Prefs;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Keeps analysis results on disk, so analyzing the same pixels with the same
+ * settings again, in this or a later session, reads the peak image instead of
+ * recomputing it. Entries are keyed by a hash of the pixels of the analyzed
+ * plane and every detection and filter setting; the channel only matters
+ * through the pixels. Each entry is one file holding the settings, the
+ * maximum raw peak and the deflated peak image.
+ * <p>
+ * When the files exceed the size limit the least recently used ones are
+ * deleted. Use is recorded in the file modification times, so the order
+ * survives restarts and is shared by every process using the directory.
+ * <p>
+ * The default cache ({@link #getDefault()}) is configured with the ImageJ
+ * preferences <code>mpp.cache.dir</code> and <code>mpp.cache.mb</code>, set
+ * from the plugin dialog.
+ */
+public class ResultCache {
+	private static final int MAGIC = 0x4d505243; // "MPRC"
+	private static final int VERSION = 1;
+	private static final String SUFFIX = ".mpp";
+
+	private final File dir;
+	private final long maxBytes;
+
+	/**
+	 * @param maxBytes
+	 *            total size of the entries kept
+	 */
+	public ResultCache(File dir, long maxBytes) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * A cache in the directory and of the size (in MB) set in the preferences,
+	 * by default a "MultipleProfilePeaks" folder in the temporary directory
+	 * and 1024 MB.
+	 */
+	public static ResultCache getDefault() {
+		String dir = Prefs.get("mpp.cache.dir", new File(
+				System.getProperty("java.io.tmpdir"), "MultipleProfilePeaks")
+				.getPath());
+		long mb = (long) Prefs.get("mpp.cache.mb", 1024);
+		return new ResultCache(new File(dir), mb << 20);
+	}
+
+	/**
+	 * Makes the given directory and size (in MB) those of
+	 * {@link #getDefault()}, in this and later sessions.
+	 */
+	public static void setDefault(File dir, long mb) {
+		Prefs.set("mpp.cache.dir", dir.getPath());
+		Prefs.set("mpp.cache.mb", mb);
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * The key of the analysis of <code>ip</code> with <code>params</code>.
+	 * Hashing reads every pixel once, so compute it once per image.
+	 */
+	public static String key(ImageProcessor ip, PeakParameters params) {
+		long h = hash(ip.getPixels());
+		h = mix(h, ip.getWidth());
+		h = mix(h, ip.getHeight());
+		return String.format("%016x-%d-%s-%d-%d-%d-%d", h, params.peakWidth,
+				Float.toString(params.stringency), params.threshold,
+				params.density, params.region, params.regionType);
+	}
+
+	/**
+	 * A 64-bit hash of a pixel array, in one pass of a multiply and rotate per
+	 * pixel. Not cryptographic, only meant to tell images apart.
+	 */
+	static long hash(Object pixels) {
+		long h = 0x27d4eb2f165667c5L;
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[]) pixels;
+			h = mix(h, 8);
+			for (int i = 0; i < p.length; i++)
+				h = mix(h, p[i]);
+		} else if (pixels instanceof short[]) {
+			short[] p = (short[]) pixels;
+			h = mix(h, 16);
+			for (int i = 0; i < p.length; i++)
+				h = mix(h, p[i]);
+		} else if (pixels instanceof float[]) {
+			float[] p = (float[]) pixels;
+			h = mix(h, 32);
+			for (int i = 0; i < p.length; i++)
+				h = mix(h, Float.floatToIntBits(p[i]));
+		} else {
+			throw new IllegalArgumentException("Not a grayscale image");
+		}
+		// Final avalanche, so nearby inputs give unrelated keys
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static long mix(long h, int value) {
+		return Long.rotateLeft(h ^ (value * 0x9e3779b97f4a7c15L), 27)
+				* 0xc2b2ae3d27d4eb4fL;
+	}
+
+	/**
+	 * The cached result for <code>key</code>, or null if there is none. The
+	 * returned analysis has no {@link PeakAnalysis#data}, so its per-peak
+	 * data is not available.
+	 */
+	public synchronized PeakAnalysis get(String key) {
+		File file = file(key);
+		if (!file.isFile())
+			return null;
+		Inflater inflater = new Inflater();
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION
+						|| !in.readUTF().equals(key))
+					return null;
+				int width = in.readInt();
+				int height = in.readInt();
+				int maxPeak = in.readInt();
+				byte[] bytes = new byte[2 * width * height];
+				new DataInputStream(new InflaterInputStream(in, inflater))
+						.readFully(bytes);
+				short[] pixels = new short[width * height];
+				ByteBuffer.wrap(bytes).asShortBuffer().get(pixels);
+				file.setLastModified(System.currentTimeMillis());
+				return new PeakAnalysis(null, new ShortProcessor(width, height,
+						pixels, null), maxPeak);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// Truncated or unreadable: recompute, and overwrite it then
+			return null;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Stores a result, then deletes the least recently used entries beyond
+	 * the size limit. The file is written under a temporary name and renamed,
+	 * so readers never see it partly written.
+	 */
+	public synchronized void put(String key, PeakAnalysis result)
+			throws IOException {
+		long start = Metrics.start();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create cache directory " + dir);
+		ImageProcessor peaks = result.peaks;
+		short[] pixels = (short[]) peaks.getPixels();
+		ByteBuffer bytes = ByteBuffer.allocate(2 * pixels.length);
+		bytes.asShortBuffer().put(pixels);
+
+		File tmp = File.createTempFile("entry", ".tmp", dir);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeUTF(key);
+				out.writeInt(peaks.getWidth());
+				out.writeInt(peaks.getHeight());
+				out.writeInt(result.maxPeak);
+				// Peak images are mostly zero, the fastest level compresses
+				// them well
+				Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+				try {
+					DeflaterOutputStream z = new DeflaterOutputStream(out,
+							deflater, 1 << 16);
+					z.write(bytes.array());
+					z.finish();
+				} finally {
+					deflater.end();
+				}
+			} finally {
+				out.close();
+			}
+			File file = file(key);
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("Cannot write cache entry " + file);
+		} finally {
+			tmp.delete();
+		}
+		Metrics.stop(Metrics.Stage.SAVING, start);
+		Metrics.count(Metrics.Counter.BYTES_WRITTEN, file(key).length());
+		evict();
+	}
+
+	/**
+	 * Deletes entries, least recently used first, until the total size is
+	 * within the limit.
+	 */
+	private void evict() {
+		File[] files = entries();
+		long total = 0;
+		for (File f : files)
+			total += f.length();
+		if (total <= maxBytes)
+			return;
+		final long[] used = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		for (int i = 0; i < files.length; i++) {
+			used[i] = files[i].lastModified();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return used[a] < used[b] ? -1 : used[a] > used[b] ? 1 : 0;
+			}
+		});
+		for (int i = 0; i < order.length && total > maxBytes; i++) {
+			File f = files[order[i]];
+			long length = f.length();
+			if (f.delete())
+				total -= length;
+		}
+	}
+
+	/** Total size of the entries in bytes. */
+	public synchronized long size() {
+		long total = 0;
+		for (File f : entries())
+			total += f.length();
+		return total;
+	}
+
+	public synchronized void clear() {
+		for (File f : entries())
+			f.delete();
+	}
+
+	private File[] entries() {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return new File[0];
+		int n = 0;
+		for (File f : files) {
+			if (f.isFile() && f.getName().endsWith(SUFFIX))
+				files[n++] = f;
+		}
+		return Arrays.copyOf(files, n);
+	}
+
+	private File file(String key) {
+		return new File(dir, key + SUFFIX);
+	}
+}
@@ -0,0 +1,357 @@
+package com.aleadam;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+ * Writes the peak image as an 8 or 16-bit TIFF, the peak statistics and
+ * settings as a CSV file, and optionally the peaks themselves, as a binary
+ * list or a CSV table. Images
+ * are written straight from their pixel arrays with {@link TiffWriter}.
+ */
+public class ResultWriter {
+	private static final String NL = System.getProperty("line.separator");
+	// Peak lists are written through a buffer of this size, however long
+	private static final int LIST_BUFFER_BYTES = 1 << 16;
+
+	/** First bytes of a peak list file. */
+	public static final int PEAK_LIST_MAGIC = 0x4d50504b; // "MPPK"
+	public static final int PEAK_LIST_VERSION = 1;
+
+	/**
+	 * Saves the peak image rescaled so that <code>maxValue</code> becomes 255.
+	 */
+	public static void saveImage(ImageProcessor peaks, int maxValue,
+			String path) throws IOException {
+		ImageStack stack = new ImageStack(peaks.getWidth(), peaks.getHeight());
+		stack.addSlice("1", peaks);
+		saveStack(stack, maxValue, path);
+	}
+
+	/**
+	 * Saves every slice of a stack of peak images, all rescaled so that
+	 * <code>maxValue</code> becomes 255.
+	 */
+	public static void saveStack(ImageStack peaks, int maxValue, String path)
+			throws IOException {
+		writeStack(peaks, maxValue, null, path);
+	}
+
+	/**
+	 * Saves the peak stack of an image as above, with its channels, slices
+	 * and frames, so a hyperstack reopens as one.
+	 */
+	public static void saveStack(ImagePlus peaks, int maxValue, String path)
+			throws IOException {
+		writeStack(peaks.getStack(), maxValue, TiffWriter.description(peaks),
+				path);
+	}
+
+	private static void writeStack(ImageStack peaks, int maxValue,
+			String description, String path) throws IOException {
+		int width = peaks.getWidth();
+		int height = peaks.getHeight();
+		byte[] bytes = new byte[width * height];
+		TiffWriter writer = new TiffWriter(new File(path), width, height, 8,
+				peaks.getSize());
+		writer.setDescription(description);
+		boolean written = false;
+		try {
+			for (int n = 1; n <= peaks.getSize(); n++) {
+				rescale((short[]) peaks.getPixels(n), maxValue, bytes);
+				writer.writeRows(bytes, 0, height);
+			}
+			writer.close();
+			written = true;
+		} finally {
+			if (!written)
+				writer.abort();
+		}
+	}
+
+	/**
+	 * Saves the peak image as it is, with the peak intensities of 8 and
+	 * 16-bit images.
+	 */
+	public static void saveImage16(ImageProcessor peaks, String path)
+			throws IOException {
+		TiffWriter writer = new TiffWriter(new File(path), peaks.getWidth(),
+				peaks.getHeight());
+		boolean written = false;
+		try {
+			writer.writeRows((short[]) peaks.getPixels(), 0, peaks.getHeight());
+			writer.close();
+			written = true;
+		} finally {
+			if (!written)
+				writer.abort();
+		}
+	}
+
+	/**
+	 * dest[i] = 255 * src[i] / maxValue, clipped to 255, or 0 if
+	 * <code>maxValue</code> is not positive.
+	 */
+	static void rescale(short[] src, int maxValue, byte[] dest) {
+		if (maxValue <= 0) {
+			Arrays.fill(dest, (byte) 0);
+			return;
+		}
+		for (int i = 0; i < src.length; i++)
+			dest[i] = (byte) Math.min(255, 255 * (src[i] & 0xffff) / maxValue);
+	}
+
+	/**
+	 * Saves the peaks still present in the filtered peak image, in the order
+	 * of the profiles that found them. A pixel that is a peak of both its row
+	 * and its column is listed twice. The file is big-endian and columnar:
+	 *
+	 * <pre>
+	 * int magic ("MPPK"), int version, int width, int height, int count,
+	 * int x[count], int y[count], int value[count],
+	 * byte origin[count] (0 for a row, 1 for a column)
+	 * </pre>
+	 *
+	 * @param data
+	 *            the profiles after {@link AllProfilesData#process()}
+	 * @param filtered
+	 *            the peak image after the density filter
+	 */
+	public static void savePeakList(AllProfilesData data,
+			ImageProcessor filtered, String path) throws IOException {
+		savePeakList(PeakTable.create(data, filtered), path);
+	}
+
+	/**
+	 * Saves the peaks of a table in the binary layout above, with the
+	 * orientation as origin.
+	 */
+	public static void savePeakList(PeakTable table, String path)
+			throws IOException {
+		long start = Metrics.start();
+		int count = table.size();
+		ByteBuffer buf = ByteBuffer.allocate(LIST_BUFFER_BYTES);
+		FileChannel channel = new FileOutputStream(path).getChannel();
+		try {
+			buf.putInt(PEAK_LIST_MAGIC).putInt(PEAK_LIST_VERSION)
+					.putInt(table.width).putInt(table.height).putInt(count);
+			for (int k = 0; k < count; k++) {
+				if (buf.remaining() < 4)
+					drain(buf, channel);
+				buf.putInt(table.getX(k));
+			}
+			for (int k = 0; k < count; k++) {
+				if (buf.remaining() < 4)
+					drain(buf, channel);
+				buf.putInt(table.getY(k));
+			}
+			for (int k = 0; k < count; k++) {
+				if (buf.remaining() < 4)
+					drain(buf, channel);
+				buf.putInt(table.getValue(k));
+			}
+			for (int k = 0; k < count; k++) {
+				if (!buf.hasRemaining())
+					drain(buf, channel);
+				buf.put(table.getOrientation(k));
+			}
+			drain(buf, channel);
+		} finally {
+			channel.close();
+		}
+		recordSave(start, path);
+	}
+
+	/** Writes out the buffer and clears it. */
+	private static void drain(ByteBuffer buf, FileChannel channel)
+			throws IOException {
+		buf.flip();
+		while (buf.hasRemaining())
+			channel.write(buf);
+		buf.clear();
+	}
+
+	/**
+	 * Saves a peak table as CSV, one row per peak, with the distance to the
+	 * nearest peak at another pixel.
+	 */
+	public static void savePeakTable(PeakTable table, String path)
+			throws IOException {
+		long start = Metrics.start();
+		float[] nearest = table.nearestDistances();
+		StringBuilder sb = new StringBuilder(32 * (table.size() + 1));
+		sb.append("X,Y,Value,Score,Orientation,Nearest").append(NL);
+		for (int k = 0; k < table.size(); k++) {
+			sb.append(table.getX(k)).append(',').append(table.getY(k))
+					.append(',').append(table.getValue(k)).append(',')
+					.append(table.getScore(k)).append(',')
+					.append(table.getOrientation(k) == PeakTable.HORIZONTAL ? 'H'
+							: 'V').append(',').append(nearest[k]).append(NL);
+		}
+		writeText(sb, path);
+		recordSave(start, path);
+	}
+
+	/**
+	 * Saves the statistics of the nonzero pixels of the peak image.
+	 * <code>maxPeak</code> is reported as the top of the peak range.
+	 */
+	public static void saveData(ImageProcessor peaks, int maxPeak,
+			PeakParameters params, String path) throws IOException {
+		saveData(new PeakStatistics((short[]) peaks.getPixels()), maxPeak,
+				params, path);
+	}
+
+	/**
+	 * Saves statistics already accumulated, for peak images that are not in
+	 * memory.
+	 */
+	public static void saveData(PeakStatistics stats, int maxPeak,
+			PeakParameters params, String path) throws IOException {
+		long start = Metrics.start();
+		StringBuilder sb = new StringBuilder();
+		sb.append("******************************************").append(NL);
+		sb.append("PEAK STATISTICS:").append(NL);
+		sb.append(NL);
+		sb.append("Average peak intensity: ,").append(stats.getPeakAverage())
+				.append(NL);
+		sb.append("Peak Standard deviation: ,").append(stats.getStDev())
+				.append(NL);
+		sb.append("Total number of peaks: ,").append(stats.getPeakCount())
+				.append(NL);
+		sb.append("Peak median: ,").append(stats.getPeakMedian()).append(NL);
+		sb.append("Peak range: ,").append(stats.getMinPeak()).append(" - ")
+				.append(maxPeak).append(NL);
+		sb.append(NL);
+		appendSettings(sb, params);
+		writeText(sb, path);
+		recordSave(start, path);
+	}
+
+	/**
+	 * Saves one row of statistics per processed slice of a stack.
+	 */
+	public static void saveStackData(StackProcessor stack,
+			PeakParameters params, String path) throws IOException {
+		long start = Metrics.start();
+		StringBuilder sb = new StringBuilder();
+		sb.append("Channel,Slice,Frame,Peaks,Average,StDev,Median,Min,Max")
+				.append(NL);
+		for (StackProcessor.Slice s : stack.getSlices()) {
+			PeakStatistics stats = s.stats;
+			sb.append(s.channel).append(',').append(s.slice).append(',')
+					.append(s.frame).append(',').append(stats.getPeakCount())
+					.append(',').append(stats.getPeakAverage()).append(',')
+					.append(stats.getStDev()).append(',')
+					.append(stats.getPeakMedian()).append(',')
+					.append(stats.getMinPeak()).append(',').append(s.maxPeak)
+					.append(NL);
+		}
+		sb.append(NL);
+		appendSettings(sb, params);
+		writeText(sb, path);
+		recordSave(start, path);
+	}
+
+	/**
+	 * Saves the statistics of every combination of a parameter sweep, one
+	 * row each. Region and density are empty without a density filter.
+	 */
+	public static void saveSweep(ParameterSweep sweep, String path)
+			throws IOException {
+		long start = Metrics.start();
+		StringBuilder sb = new StringBuilder();
+		sb.append("Peak width,Stringency,Threshold,Filter,Region,Density,"
+				+ "Peaks,Average,StDev,Median,Min,Max").append(NL);
+		for (ParameterSweep.Result r : sweep.getResults()) {
+			PeakParameters p = r.params;
+			PeakStatistics stats = r.stats;
+			sb.append(p.peakWidth).append(',').append(p.stringency).append(',')
+					.append(p.threshold).append(',')
+					.append(PeakParameters.REGION_TYPES[p.regionType]).append(',');
+			if (p.regionType != 2)
+				sb.append(p.region).append(',').append(p.density);
+			else
+				sb.append(',');
+			sb.append(',').append(stats.getPeakCount()).append(',')
+					.append(stats.getPeakAverage()).append(',')
+					.append(stats.getStDev()).append(',')
+					.append(stats.getPeakMedian()).append(',')
+					.append(stats.getMinPeak()).append(',').append(r.maxPeak)
+					.append(NL);
+		}
+		writeText(sb, path);
+		recordSave(start, path);
+	}
+
+	/**
+	 * Columns of {@link #imageRow}, for CSV files with one row per image.
+	 */
+	static final String IMAGE_HEADER = "File,Channel,Peaks,Average,StDev,Median,Min,Max";
+
+	/**
+	 * The statistics of one image as a CSV row in the columns of
+	 * {@link #IMAGE_HEADER}, for callers to append their own columns to.
+	 */
+	static StringBuilder imageRow(String file, int channel,
+			PeakStatistics stats, int maxPeak) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(csvField(file)).append(',').append(channel).append(',')
+				.append(stats.getPeakCount()).append(',')
+				.append(stats.getPeakAverage()).append(',')
+				.append(stats.getStDev()).append(',')
+				.append(stats.getPeakMedian()).append(',')
+				.append(stats.getMinPeak()).append(',').append(maxPeak);
+		return sb;
+	}
+
+	/**
+	 * Quotes a CSV field that holds a comma or a quote.
+	 */
+	static String csvField(String s) {
+		if (s.indexOf(',') < 0 && s.indexOf('"') < 0)
+			return s;
+		return '"' + s.replace("\"", "\"\"") + '"';
+	}
+
+	static void writeText(CharSequence text, String path)
+			throws IOException {
+		Writer writer = new FileWriter(path);
+		try {
+			writer.append(text);
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static void recordSave(long start, String path) {
+		Metrics.stop(Metrics.Stage.SAVING, start);
+		if (Metrics.isEnabled())
+			Metrics.count(Metrics.Counter.BYTES_WRITTEN, new File(path).length());
+	}
+
+	static void appendSettings(StringBuilder sb, PeakParameters params) {
+		sb.append("******************************************").append(NL);
+		sb.append("SETTINGS:").append(NL);
+		sb.append(NL);
+		sb.append("Peak width setting: ,").append(params.peakWidth).append(NL);
+		sb.append("Stringency: ,").append(params.stringency).append(NL);
+		sb.append("Threshold: ,").append(params.threshold).append(NL);
+		sb.append("Density filter used: ,")
+				.append(PeakParameters.REGION_TYPES[params.regionType])
+				.append(NL);
+		sb.append("Minimum density: ,").append(params.density).append(NL);
+		sb.append("Region size: ,").append(params.region).append(NL);
+		sb.append("******************************************");
+	}
+}
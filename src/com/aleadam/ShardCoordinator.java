@@ -0,0 +1,638 @@
+package com.aleadam;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FilenameUtils;
+
+import ij.IJ;
+import ij.Macro;
+import ij.Prefs;
+
+/**
+ * Splits the batch processing of a directory between several processes, on
+ * one or many machines sharing the output directory, so a large screen is
+ * not limited to the memory of one JVM. Each process runs a coordinator with
+ * the same directories and settings.
+ * <p>
+ * The first one to start lists the images and writes shards of a few images
+ * each to a "shards" folder in the output directory. Every coordinator then
+ * claims shards one at a time by creating their lock file, which only one
+ * can do, and processes their images as {@link BatchProcessor} does. While a
+ * shard is processed its lock is touched regularly; a lock not touched for
+ * the stale timeout belongs to a process that died, and is taken over by
+ * another one. The rows of the images done are kept as they finish, each
+ * worker in its own part file, so the new owner only processes the rest.
+ * Runs can also be stopped and restarted at any time.
+ * <p>
+ * A shard is only done once all its images are. Images that fail, including
+ * with an error such as running out of memory, are listed in a ".failed"
+ * file of the worker and the shard is released unfinished. Each coordinator
+ * tries a shard once per run, so another worker, or the next run, retries
+ * the images that failed.
+ * <p>
+ * Once every shard is done the statistics of all the images are merged into
+ * "summary.csv" in the output directory. Coordinators only exit then,
+ * taking over shards whose owner died while they wait, or once only shards
+ * they failed to finish are left, without a summary.
+ * <p>
+ * This needs a file system where creating a file is atomic, as local disks
+ * and NFS 3 or later, and clocks in sync to well within the stale timeout. A
+ * process that is only paused past the stale timeout loses its shard and
+ * leaves it; at worst images are processed twice, with the same results.
+ * <p>
+ * From the command line:
+ *
+ * <pre>
+ * java -cp ij.jar:MultipleProfilePeaks.jar com.aleadam.ShardCoordinator \
+ *     inputDir outputDir [peak=20] [stringency=1] [threshold=0] \
+ *     [density=1] [region=5] [filter=circle|square|none] [channel=1] [threads=n] \
+ *     [metrics=timings.json] [bits=8|16] [peaklist=true] [peaktable=true] \
+ *     [cache=dir] [cachesize=1024] [shardsize=16] [worker=id] [heartbeat=10] \
+ *     [stale=120]
+ * </pre>
+ */
+public class ShardCoordinator {
+	private static final String NL = System.getProperty("line.separator");
+	private static final String HEADER = ResultWriter.IMAGE_HEADER + ",Worker";
+
+	private File inputDir, outputDir, shardDir;
+	private PeakParameters params;
+	private BatchProcessor batch;
+	private int shardSize = 16;
+	private int threads = Prefs.getThreads();
+	private String worker = ManagementFactory.getRuntimeMXBean().getName();
+	private long heartbeatMillis = 10000;
+	private long staleMillis = 120000;
+	// Shards this coordinator could not finish, left to the others
+	private final Set<Integer> failedShards = new TreeSet<Integer>();
+
+	private volatile boolean stopped;
+
+	public ShardCoordinator(File inputDir, File outputDir, PeakParameters params) {
+		this.inputDir = inputDir;
+		this.outputDir = outputDir;
+		this.params = params;
+		shardDir = new File(outputDir, "shards");
+		batch = new BatchProcessor(inputDir, outputDir, params);
+	}
+
+	/**
+	 * Processes each image. Set its output options (bit depth, peak lists and
+	 * tables, cache) here; its threads are not used. Its metrics cover the
+	 * images of this coordinator, and are saved with the worker name added to
+	 * the file name.
+	 */
+	public BatchProcessor getBatch() {
+		return batch;
+	}
+
+	/**
+	 * Number of images per shard, used only by the coordinator that writes
+	 * the shards.
+	 */
+	public void setShardSize(int shardSize) {
+		this.shardSize = Math.max(1, shardSize);
+	}
+
+	/** Number of images of a shard processed at once. */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Name of this process in the locks and the summary, by default its
+	 * process id and host name.
+	 */
+	public void setWorkerId(String worker) {
+		this.worker = worker;
+	}
+
+	/** How often the lock of the shard being processed is touched. */
+	public void setHeartbeat(long millis) {
+		this.heartbeatMillis = Math.max(100, millis);
+	}
+
+	/**
+	 * How long a lock must go untouched to be taken over. Must be well above
+	 * the heartbeat.
+	 */
+	public void setStaleTimeout(long millis) {
+		this.staleMillis = Math.max(1000, millis);
+	}
+
+	/**
+	 * Makes {@link #run()} return once the images being processed are done.
+	 * The shard is released with its progress, for any coordinator to finish.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Processes shards until all are done, then writes the summary.
+	 *
+	 * @return the number of images processed by this coordinator.
+	 * @throws IOException
+	 *             also if images of some shards failed, once no other shard
+	 *             is left to this coordinator; the summary is then not
+	 *             written
+	 */
+	public int run() throws IOException, InterruptedException {
+		if (!inputDir.isDirectory())
+			throw new IOException("Not a directory: " + inputDir);
+		// Another worker may create it between the two checks
+		if (!shardDir.mkdirs() && !shardDir.isDirectory())
+			throw new IOException("Cannot create shard directory: " + shardDir);
+		int shards = plan();
+		IJ.log(worker + ": " + shards + " shards in " + shardDir);
+		File metricsFile = batch.getMetricsFile();
+		if (metricsFile != null) {
+			Metrics.reset();
+			Metrics.setEnabled(true);
+		}
+		int done = 0;
+		boolean finished = false;
+		try {
+			while (!stopped) {
+				boolean pending = false, claimed = false;
+				for (int s = 0; s < shards && !stopped; s++) {
+					if (file(s, ".csv").exists() || failedShards.contains(s))
+						continue;
+					pending = true;
+					if (claim(s)) {
+						claimed = true;
+						done += process(s);
+					}
+				}
+				if (!pending) {
+					finished = true;
+					break;
+				}
+				// The other shards are being processed: wait for them to
+				// finish, or for their locks to go stale
+				if (!claimed)
+					Thread.sleep(heartbeatMillis);
+			}
+		} finally {
+			if (metricsFile != null)
+				saveMetrics(metricsFile);
+		}
+		IJ.log(worker + ": processed " + done + " images from " + inputDir);
+		if (!finished)
+			return done;
+		List<Integer> unfinished = new ArrayList<Integer>();
+		for (int s : failedShards) {
+			// Finished by another coordinator since
+			if (!file(s, ".csv").exists())
+				unfinished.add(s);
+		}
+		if (!unfinished.isEmpty())
+			throw new IOException("Images of shards " + unfinished
+					+ " failed, see the .failed files in " + shardDir
+					+ "; run again to retry them");
+		merge(shards);
+		return done;
+	}
+
+	/**
+	 * Writes the shards unless another coordinator has, and waits for them.
+	 *
+	 * @return the number of shards.
+	 */
+	private int plan() throws IOException, InterruptedException {
+		File plan = new File(shardDir, "plan.properties");
+		File lock = new File(shardDir, "plan.lock");
+		while (!plan.exists()) {
+			if (lock.createNewFile()) {
+				try {
+					// Another coordinator may have finished just before
+					if (!plan.exists())
+						writePlan(plan);
+				} finally {
+					lock.delete();
+				}
+			} else {
+				if (age(lock) > staleMillis)
+					lock.delete();
+				Thread.sleep(Math.min(heartbeatMillis, 1000));
+			}
+		}
+
+		Properties p = new Properties();
+		InputStream in = new FileInputStream(plan);
+		try {
+			p.load(in);
+		} finally {
+			in.close();
+		}
+		if (!params.toOptions().equals(p.getProperty("settings")))
+			throw new IOException("The shards in " + shardDir
+					+ " are for other settings: " + p.getProperty("settings"));
+		return Integer.parseInt(p.getProperty("shards"));
+	}
+
+	/**
+	 * Writes the image names of each shard, then the plan, under a temporary
+	 * name so it only appears complete.
+	 */
+	private void writePlan(File plan) throws IOException {
+		File[] files = inputDir.listFiles();
+		if (files == null)
+			throw new IOException("Cannot list " + inputDir);
+		Arrays.sort(files);
+		List<String> names = new ArrayList<String>();
+		for (File f : files) {
+			if (f.isFile() && !f.isHidden())
+				names.add(f.getName());
+		}
+		int shards = (names.size() + shardSize - 1) / shardSize;
+		for (int s = 0; s < shards; s++) {
+			StringBuilder sb = new StringBuilder();
+			for (String name : names.subList(s * shardSize,
+					Math.min(names.size(), (s + 1) * shardSize)))
+				sb.append(name).append('\n');
+			ResultWriter.writeText(sb, file(s, ".list").getPath());
+		}
+
+		Properties p = new Properties();
+		p.setProperty("settings", params.toOptions());
+		p.setProperty("shards", Integer.toString(shards));
+		p.setProperty("images", Integer.toString(names.size()));
+		File tmp = new File(shardDir, "plan.tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			p.store(out, "Shards of " + inputDir);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(plan))
+			throw new IOException("Cannot write " + plan);
+	}
+
+	/**
+	 * Creates the lock of a shard, or takes it over if it is stale.
+	 */
+	private boolean claim(int s) throws IOException {
+		File lock = file(s, ".lock");
+		if (lock.createNewFile()) {
+			ResultWriter.writeText(worker + '\n', lock.getPath());
+			return true;
+		}
+		if (age(lock) <= staleMillis)
+			return false;
+		String owner = owner(lock);
+		// Of several coordinators moving the stale lock aside only one
+		// succeeds
+		File aside = new File(shardDir, lock.getName() + "."
+				+ workerFileName() + ".stale");
+		if (!lock.renameTo(aside))
+			return false;
+		if (age(aside) <= staleMillis) {
+			// Taken over just before by someone else
+			aside.renameTo(lock);
+			return false;
+		}
+		aside.delete();
+		IJ.log(worker + ": taking over shard " + s + " from " + owner);
+		return claim(s);
+	}
+
+	/**
+	 * Processes the images of a claimed shard that are not done yet, then
+	 * marks it done unless some failed, and releases it.
+	 *
+	 * @return the number of images processed.
+	 */
+	private int process(int s) throws IOException, InterruptedException {
+		final File lock = file(s, ".lock");
+		// Completed and released since it was checked
+		if (file(s, ".csv").exists()) {
+			lock.delete();
+			return 0;
+		}
+		List<String> names = readLines(file(s, ".list"));
+		// Rows kept by this and previous owners, whose output files are
+		// written
+		Map<String, String> finished = readRows(s);
+		// Only this worker writes its part, even if a previous owner is still
+		// running. A last row cut short by a crash is dropped.
+		File part = file(s, "." + workerFileName() + ".part");
+		StringBuilder sb = new StringBuilder();
+		if (part.exists()) {
+			for (String row : readLines(part))
+				sb.append(row).append('\n');
+		}
+		ResultWriter.writeText(sb, part.getPath());
+
+		final Writer out = new FileWriter(part, true);
+		final boolean[] lost = new boolean[1];
+		Timer heartbeat = new Timer("Shard heartbeat", true);
+		heartbeat.schedule(new TimerTask() {
+			public void run() {
+				if (!worker.equals(owner(lock))) {
+					lost[0] = true;
+					cancel();
+				} else {
+					lock.setLastModified(System.currentTimeMillis());
+				}
+			}
+		}, heartbeatMillis, heartbeatMillis);
+
+		final AtomicInteger done = new AtomicInteger();
+		final List<String> failures = Collections
+				.synchronizedList(new ArrayList<String>());
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for (final String name : names) {
+				if (finished.containsKey(name))
+					continue;
+				pool.execute(new Runnable() {
+					public void run() {
+						if (stopped || lost[0])
+							return;
+						File file = new File(inputDir, name);
+						try {
+							PeakAnalysis result = batch.analyzeFile(file);
+							// Not an image: done, without a row
+							if (result == null)
+								return;
+							String row = row(name, result);
+							synchronized (out) {
+								out.write(row + '\n');
+								out.flush();
+							}
+							done.incrementAndGet();
+						} catch (Throwable e) {
+							// Errors too, such as OutOfMemoryError, which
+							// would otherwise only end this task
+							IJ.log("Error processing " + name + ": " + e);
+							failures.add(ResultWriter.csvField(name) + ","
+									+ ResultWriter.csvField(worker) + ","
+									+ ResultWriter.csvField(e.toString()));
+						}
+					}
+				});
+			}
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} finally {
+			pool.shutdownNow();
+			heartbeat.cancel();
+			out.close();
+		}
+		if (!failures.isEmpty()) {
+			Writer failed = new FileWriter(file(s, "." + workerFileName()
+					+ ".failed"), true);
+			try {
+				for (String failure : failures)
+					failed.write(failure + '\n');
+			} finally {
+				failed.close();
+			}
+		}
+		if (lost[0]) {
+			IJ.log(worker + ": lost shard " + s + " to " + owner(lock));
+			return done.get();
+		}
+		if (!failures.isEmpty()) {
+			failedShards.add(s);
+			IJ.log(worker + ": " + failures.size() + " images of shard " + s
+					+ " failed, leaving it to other workers or the next run");
+		} else if (!stopped) {
+			complete(s, names);
+		}
+		lock.delete();
+		return done.get();
+	}
+
+	/**
+	 * The rows of the images of a shard already done, by every worker, by
+	 * image name.
+	 */
+	private Map<String, String> readRows(int s) throws IOException {
+		Map<String, String> rows = new HashMap<String, String>();
+		for (File part : files(s, ".part")) {
+			for (String row : readLines(part))
+				rows.put(firstField(row), row);
+		}
+		return rows;
+	}
+
+	/**
+	 * Writes the rows of a shard from all the part files, in image order,
+	 * under its final name, which marks it done.
+	 */
+	private void complete(int s, List<String> names) throws IOException {
+		Map<String, String> rows = readRows(s);
+		StringBuilder sb = new StringBuilder();
+		for (String name : names) {
+			// Files that are not images have no row
+			if (rows.containsKey(name))
+				sb.append(rows.get(name)).append('\n');
+		}
+		File tmp = file(s, ".tmp");
+		ResultWriter.writeText(sb, tmp.getPath());
+		if (!tmp.renameTo(file(s, ".csv")))
+			throw new IOException("Cannot complete shard " + s);
+		for (File f : files(s, ".part"))
+			f.delete();
+		for (File f : files(s, ".failed"))
+			f.delete();
+	}
+
+	private String row(String name, PeakAnalysis result) {
+		PeakStatistics stats = new PeakStatistics(
+				(short[]) result.peaks.getPixels());
+		return ResultWriter.imageRow(name, params.channel, stats, result.maxPeak)
+				.append(',').append(ResultWriter.csvField(worker)).toString();
+	}
+
+	/**
+	 * Writes the rows of every shard, in image order, and the settings to
+	 * "summary.csv". Every coordinator that finds all shards done writes the
+	 * same file.
+	 */
+	private void merge(int shards) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append(HEADER).append(NL);
+		for (int s = 0; s < shards; s++) {
+			for (String row : readLines(file(s, ".csv")))
+				sb.append(row).append(NL);
+		}
+		sb.append(NL);
+		ResultWriter.appendSettings(sb, params);
+		File tmp = File.createTempFile("summary", ".tmp", shardDir);
+		ResultWriter.writeText(sb, tmp.getPath());
+		File summary = new File(outputDir, "summary.csv");
+		summary.delete();
+		if (!tmp.renameTo(summary)) {
+			tmp.delete();
+			throw new IOException("Cannot write " + summary);
+		}
+		IJ.log(worker + ": wrote " + summary);
+	}
+
+	private File file(int shard, String suffix) {
+		return new File(shardDir, String.format("shard-%05d%s", shard, suffix));
+	}
+
+	/**
+	 * The files of a shard with the given suffix, of every worker.
+	 */
+	private File[] files(int shard, final String suffix) {
+		final String prefix = String.format("shard-%05d.", shard);
+		File[] files = shardDir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix) && name.endsWith(suffix);
+			}
+		});
+		return files == null ? new File[0] : files;
+	}
+
+	/** The worker name, usable in file names. */
+	private String workerFileName() {
+		return worker.replaceAll("[^\\w.-]", "_");
+	}
+
+	/**
+	 * Saves the metrics of this coordinator next to the given file, with the
+	 * worker name added, so workers sharing the path do not overwrite each
+	 * other.
+	 */
+	private void saveMetrics(File metricsFile) {
+		Metrics.setEnabled(false);
+		Metrics.log();
+		String name = FilenameUtils.getBaseName(metricsFile.getName()) + "-"
+				+ workerFileName();
+		String extension = FilenameUtils.getExtension(metricsFile.getName());
+		if (extension.length() > 0)
+			name += "." + extension;
+		File file = new File(metricsFile.getAbsoluteFile().getParentFile(), name);
+		try {
+			Metrics.save(file.getPath());
+		} catch (IOException e) {
+			IJ.log("Cannot save metrics to " + file + ": " + e);
+		}
+	}
+
+	private static long age(File f) {
+		return System.currentTimeMillis() - f.lastModified();
+	}
+
+	/** The worker in a lock file, or null if it is gone. */
+	private static String owner(File lock) {
+		try {
+			List<String> lines = readLines(lock);
+			return lines.isEmpty() ? null : lines.get(0);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The complete lines of a file, without a last line that has no line
+	 * end.
+	 */
+	private static List<String> readLines(File file) throws IOException {
+		StringBuilder sb = new StringBuilder((int) file.length());
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			char[] buf = new char[8192];
+			int n;
+			while ((n = in.read(buf)) > 0)
+				sb.append(buf, 0, n);
+		} finally {
+			in.close();
+		}
+		List<String> lines = new ArrayList<String>();
+		int start = 0;
+		for (int i = sb.indexOf("\n"); i >= 0; i = sb.indexOf("\n", start)) {
+			if (i > start)
+				lines.add(sb.substring(start, i));
+			start = i + 1;
+		}
+		return lines;
+	}
+
+	/** The first field of a CSV row, unquoted. */
+	private static String firstField(String row) {
+		if (!row.startsWith("\"")) {
+			int comma = row.indexOf(',');
+			return comma < 0 ? row : row.substring(0, comma);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 1; i < row.length(); i++) {
+			char c = row.charAt(i);
+			if (c == '"') {
+				if (i + 1 < row.length() && row.charAt(i + 1) == '"')
+					i++;
+				else
+					break;
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		if (args.length < 2) {
+			System.err.println("Usage: ShardCoordinator inputDir outputDir "
+					+ PeakParameters.USAGE + " [threads=n] [metrics=timings.json] [bits=8|16] "
+					+ "[peaklist=true] [peaktable=true] [cache=dir] [cachesize=1024] "
+					+ "[shardsize=16] [worker=id] [heartbeat=10] [stale=120]");
+			System.exit(1);
+		}
+		StringBuilder options = new StringBuilder();
+		for (int i = 2; i < args.length; i++)
+			options.append(args[i]).append(' ');
+		PeakParameters params = PeakParameters.fromOptions(options.toString());
+		params.validate(Integer.MAX_VALUE);
+		ShardCoordinator shards = new ShardCoordinator(new File(args[0]),
+				new File(args[1]), params);
+		shards.getBatch().setOptions(options.toString());
+		String threads = Macro.getValue(options.toString(), "threads", null);
+		if (threads != null)
+			shards.setThreads(Integer.parseInt(threads));
+		String size = Macro.getValue(options.toString(), "shardsize", null);
+		if (size != null)
+			shards.setShardSize(Integer.parseInt(size));
+		String worker = Macro.getValue(options.toString(), "worker", null);
+		if (worker != null)
+			shards.setWorkerId(worker);
+		String heartbeat = Macro.getValue(options.toString(), "heartbeat", null);
+		if (heartbeat != null)
+			shards.setHeartbeat(1000 * Long.parseLong(heartbeat));
+		String stale = Macro.getValue(options.toString(), "stale", null);
+		if (stale != null)
+			shards.setStaleTimeout(1000 * Long.parseLong(stale));
+		shards.run();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,21 @@
+package com.aleadam;
+
+/**
+ * The spikiness function of every profile of an {@link AllProfilesData}, with
+ * the mean and standard deviation of each profile. It depends on the peak
+ * width only, so it can be kept while the stringency changes.
+ */
+public class Spikiness {
+	public final int peakWidth;
+	/** Same layout as {@link AllProfilesData#allPixelValues}. */
+	public final float[] values;
+	public final float[] mean;
+	public final float[] std;
+
+	Spikiness(int peakWidth, int size, int profiles) {
+		this.peakWidth = peakWidth;
+		values = new float[size];
+		mean = new float[profiles];
+		std = new float[profiles];
+	}
+}
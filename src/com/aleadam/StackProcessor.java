@@ -0,0 +1,140 @@
+package com.aleadam;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.process.ImageProcessor;
+
+/**
+ * Runs the peak analysis on every plane of a stack or hyperstack, or on a
+ * range of channels, slices and frames. Planes are processed in parallel on
+ * one pool of worker threads, each keeping its own peak detector.
+ */
+public class StackProcessor {
+
+	/**
+	 * The result of one plane. Channel, slice and frame are 1-based.
+	 */
+	public static class Slice {
+		public final int channel, slice, frame;
+		public final ImageProcessor peaks;
+		public final PeakStatistics stats;
+		public final int maxPeak;
+
+		Slice(int channel, int slice, int frame, PeakAnalysis result) {
+			this.channel = channel;
+			this.slice = slice;
+			this.frame = frame;
+			this.peaks = result.peaks;
+			this.stats = new PeakStatistics((short[]) result.peaks.getPixels());
+			this.maxPeak = result.maxPeak;
+		}
+	}
+
+	private ImagePlus imp;
+	private PeakParameters params;
+	private int c0, c1, z0, z1, t0, t1;
+	private int threads = Prefs.getThreads();
+	private List<Slice> slices;
+
+	public StackProcessor(ImagePlus imp, PeakParameters params) {
+		this.imp = imp;
+		this.params = params;
+		c0 = z0 = t0 = 1;
+		c1 = imp.getNChannels();
+		z1 = imp.getNSlices();
+		t1 = imp.getNFrames();
+	}
+
+	/**
+	 * Restricts processing to the given inclusive, 1-based ranges. Values out
+	 * of the image dimensions are clamped.
+	 */
+	public void setRange(int c0, int c1, int z0, int z1, int t0, int t1) {
+		this.c0 = clamp(c0, imp.getNChannels());
+		this.c1 = Math.max(this.c0, clamp(c1, imp.getNChannels()));
+		this.z0 = clamp(z0, imp.getNSlices());
+		this.z1 = Math.max(this.z0, clamp(z1, imp.getNSlices()));
+		this.t0 = clamp(t0, imp.getNFrames());
+		this.t1 = Math.max(this.t0, clamp(t1, imp.getNFrames()));
+	}
+
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Processes all selected planes and returns the peak images as a
+	 * hyperstack with the same dimension order as the input.
+	 */
+	public ImagePlus run(String title) throws InterruptedException {
+		final ImageStack stack = imp.getStack();
+		List<Future<Slice>> futures = new ArrayList<Future<Slice>>();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for (int t = t0; t <= t1; t++) {
+				for (int z = z0; z <= z1; z++) {
+					for (int c = c0; c <= c1; c++) {
+						final int channel = c, slice = z, frame = t;
+						final int index = imp.getStackIndex(c, z, t);
+						futures.add(pool.submit(new Callable<Slice>() {
+							public Slice call() {
+								String name = label(channel, slice, frame);
+								PeakAnalysis result = PeakAnalysis.analyze(
+										stack.getProcessor(index), name,
+										params, 1);
+								return new Slice(channel, slice, frame, result);
+							}
+						}));
+					}
+				}
+			}
+			slices = new ArrayList<Slice>(futures.size());
+			for (Future<Slice> f : futures)
+				slices.add(f.get());
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+
+		ImageStack result = new ImageStack(imp.getWidth(), imp.getHeight());
+		for (Slice s : slices)
+			result.addSlice(label(s.channel, s.slice, s.frame), s.peaks);
+		ImagePlus resultImp = new ImagePlus(title, result);
+		resultImp.setDimensions(c1 - c0 + 1, z1 - z0 + 1, t1 - t0 + 1);
+		if (imp.isHyperStack())
+			resultImp.setOpenAsHyperStack(true);
+		return resultImp;
+	}
+
+	/**
+	 * The processed planes, in stack order (channels varying fastest).
+	 */
+	public List<Slice> getSlices() {
+		return slices;
+	}
+
+	public int getMaxPeak() {
+		int max = 0;
+		for (Slice s : slices)
+			max = Math.max(max, s.maxPeak);
+		return max;
+	}
+
+	private static String label(int c, int z, int t) {
+		return "c" + c + "/z" + z + "/t" + t;
+	}
+
+	private static int clamp(int value, int max) {
+		return Math.max(1, Math.min(max, value));
+	}
+}
@@ -0,0 +1,279 @@
+package com.aleadam;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * Writes an uncompressed 8 or 16-bit grayscale TIFF a band of rows at a time,
+ * so the image never has to be in memory as a whole. Each image is stored as
+ * a single strip, one after the other, and the image directories are written
+ * at the end by {@link #close()}. Stacks carry an ImageJ description so
+ * ImageJ opens them as stacks, or as hyperstacks with the description of
+ * {@link #description(ImagePlus)}. Files of 4 GB or more are written as BigTIFF.
+ */
+public class TiffWriter implements Closeable {
+	private static final int IMAGE_WIDTH = 256, IMAGE_LENGTH = 257,
+			BITS_PER_SAMPLE = 258, COMPRESSION = 259, PHOTOMETRIC = 262,
+			IMAGE_DESCRIPTION = 270, STRIP_OFFSETS = 273,
+			SAMPLES_PER_PIXEL = 277, ROWS_PER_STRIP = 278,
+			STRIP_BYTE_COUNTS = 279;
+	private static final short ASCII = 2, SHORT = 3, LONG = 4, LONG8 = 16;
+
+	private final File path;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int width, height, bitDepth, images;
+	private final boolean bigTiff;
+	private final long dataOffset;
+	private ByteBuffer buffer;
+	private long rowsWritten;
+	private String description;
+
+	public TiffWriter(File path, int width, int height) throws IOException {
+		this(path, width, height, 16, 1);
+	}
+
+	/**
+	 * @param bitDepth
+	 *            8 or 16
+	 * @param images
+	 *            number of images of the stack, written one after the other
+	 */
+	public TiffWriter(File path, int width, int height, int bitDepth,
+			int images) throws IOException {
+		if (bitDepth != 8 && bitDepth != 16)
+			throw new IllegalArgumentException("Bit depth must be 8 or 16");
+		this.width = width;
+		this.height = height;
+		this.bitDepth = bitDepth;
+		this.images = images;
+		bigTiff = getImageSize() * images >= 0xffffffffL - (1 << 20);
+		dataOffset = bigTiff ? 16 : 8;
+		this.path = path;
+		file = new RandomAccessFile(path, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+		channel.position(dataOffset);
+	}
+
+	/**
+	 * Sets the ImageJ description written by {@link #close()}, such as that
+	 * of {@link #description(ImagePlus)}. Stacks otherwise only give their
+	 * number of images.
+	 */
+	public void setDescription(String description) {
+		this.description = description;
+	}
+
+	/**
+	 * The description ImageJ writes for an image: the running version, the
+	 * number of images and the channels, slices and frames of hyperstacks,
+	 * so they reopen with the same dimensions.
+	 */
+	public static String description(ImagePlus imp) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("ImageJ=").append(IJ.getVersion()).append('\n');
+		if (imp.getStackSize() > 1)
+			sb.append("images=").append(imp.getStackSize()).append('\n');
+		if (imp.getNChannels() > 1)
+			sb.append("channels=").append(imp.getNChannels()).append('\n');
+		if (imp.getNSlices() > 1)
+			sb.append("slices=").append(imp.getNSlices()).append('\n');
+		if (imp.getNFrames() > 1)
+			sb.append("frames=").append(imp.getNFrames()).append('\n');
+		if (imp.isHyperStack())
+			sb.append("hyperstack=true\n");
+		return sb.toString();
+	}
+
+	private long getImageSize() {
+		return (long) width * height * bitDepth / 8;
+	}
+
+	/**
+	 * Appends <code>rows</code> rows of 16-bit <code>pixels</code>, starting
+	 * at <code>offset</code>. Rows continue into the next image of a stack.
+	 */
+	public void writeRows(short[] pixels, int offset, int rows)
+			throws IOException {
+		checkRows(16, rows);
+		long start = Metrics.start();
+		int count = rows * width;
+		ByteBuffer buf = buffer(2 * count);
+		buf.asShortBuffer().put(pixels, offset, count);
+		write(buf, 2 * count, start);
+		rowsWritten += rows;
+	}
+
+	/**
+	 * Appends <code>rows</code> rows of 8-bit <code>pixels</code>, starting
+	 * at <code>offset</code>. Rows continue into the next image of a stack.
+	 */
+	public void writeRows(byte[] pixels, int offset, int rows)
+			throws IOException {
+		checkRows(8, rows);
+		long start = Metrics.start();
+		int count = rows * width;
+		ByteBuffer buf = buffer(count);
+		buf.put(pixels, offset, count);
+		buf.position(0);
+		write(buf, count, start);
+		rowsWritten += rows;
+	}
+
+	private void checkRows(int bits, int rows) throws IOException {
+		if (bits != bitDepth)
+			throw new IllegalArgumentException("Writing " + bits
+					+ "-bit pixels to a " + bitDepth + "-bit image");
+		if (rowsWritten + rows > (long) height * images)
+			throw new IOException("More than " + images + " images written");
+	}
+
+	private ByteBuffer buffer(int bytes) {
+		if (buffer == null || buffer.capacity() < bytes)
+			buffer = ByteBuffer.allocateDirect(bytes);
+		buffer.clear();
+		return buffer;
+	}
+
+	private void write(ByteBuffer buf, int bytes, long start)
+			throws IOException {
+		buf.limit(bytes);
+		while (buf.hasRemaining())
+			channel.write(buf);
+		Metrics.stop(Metrics.Stage.SAVING, start);
+		Metrics.count(Metrics.Counter.BYTES_WRITTEN, bytes);
+	}
+
+	/**
+	 * Writes the image directories. All rows must have been written.
+	 */
+	public void close() throws IOException {
+		try {
+			if (rowsWritten != (long) height * images)
+				throw new IOException("Only " + rowsWritten + " of "
+						+ (long) height * images + " rows written");
+			// Directories start on a word boundary
+			long position = channel.position();
+			position += position % 2;
+			long written = 0;
+
+			// Read by ImageJ to open the images as a stack
+			String text = this.description;
+			if (text == null && images > 1)
+				text = "ImageJ=" + IJ.getVersion() + "\nimages=" + images + "\n";
+			byte[] description = null;
+			long descriptionOffset = 0;
+			if (text != null) {
+				description = (text + "\0").getBytes("US-ASCII");
+				descriptionOffset = position;
+				write(ByteBuffer.wrap(description), position);
+				position += description.length + description.length % 2;
+				written += description.length;
+			}
+
+			int entrySize = bigTiff ? 20 : 12;
+			for (int n = 0; n < images; n++) {
+				int entries = n == 0 && description != null ? 10 : 9;
+				ByteBuffer ifd = ByteBuffer.allocate((bigTiff ? 16 : 6)
+						+ entries * entrySize);
+				if (bigTiff)
+					ifd.putLong(entries);
+				else
+					ifd.putShort((short) entries);
+				entry(ifd, IMAGE_WIDTH, LONG, 1, width);
+				entry(ifd, IMAGE_LENGTH, LONG, 1, height);
+				entry(ifd, BITS_PER_SAMPLE, SHORT, 1, bitDepth);
+				entry(ifd, COMPRESSION, SHORT, 1, 1);
+				// Black is zero
+				entry(ifd, PHOTOMETRIC, SHORT, 1, 1);
+				if (entries == 10)
+					entry(ifd, IMAGE_DESCRIPTION, ASCII, description.length,
+							descriptionOffset);
+				entry(ifd, STRIP_OFFSETS, bigTiff ? LONG8 : LONG, 1,
+						dataOffset + n * getImageSize());
+				entry(ifd, SAMPLES_PER_PIXEL, SHORT, 1, 1);
+				entry(ifd, ROWS_PER_STRIP, LONG, 1, height);
+				entry(ifd, STRIP_BYTE_COUNTS, bigTiff ? LONG8 : LONG, 1,
+						getImageSize());
+				// Offset of the next directory, 0 for the last one
+				long next = n + 1 < images ? position + ifd.capacity() : 0;
+				if (bigTiff)
+					ifd.putLong(next);
+				else
+					ifd.putInt((int) next);
+				if (n == 0)
+					writeHeader(position);
+				ifd.flip();
+				write(ifd, position);
+				position += ifd.capacity();
+				written += ifd.capacity();
+			}
+			Metrics.count(Metrics.Counter.BYTES_WRITTEN, dataOffset + written);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Closes and deletes the file, without writing the directories. For
+	 * writes that failed part way, whose cause {@link #close()} would hide.
+	 */
+	public void abort() {
+		try {
+			file.close();
+		} catch (IOException e) {
+			// Deleted anyway
+		}
+		path.delete();
+	}
+
+	private void writeHeader(long ifdOffset) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate((int) dataOffset);
+		header.put((byte) 'M').put((byte) 'M');
+		if (bigTiff) {
+			header.putShort((short) 43).putShort((short) 8).putShort((short) 0);
+			header.putLong(ifdOffset);
+		} else {
+			header.putShort((short) 42).putInt((int) ifdOffset);
+		}
+		header.flip();
+		write(header, 0);
+	}
+
+	/**
+	 * Appends one directory entry. Single values are left-justified in the
+	 * value field as the format requires; ASCII values are given by offset.
+	 */
+	private void entry(ByteBuffer ifd, int tag, short type, long count,
+			long value) {
+		ifd.putShort((short) tag).putShort(type);
+		if (bigTiff) {
+			ifd.putLong(count);
+			if (type == SHORT)
+				ifd.putShort((short) value).putShort((short) 0).putInt(0);
+			else if (type == LONG)
+				ifd.putInt((int) value).putInt(0);
+			else
+				ifd.putLong(value);
+		} else {
+			ifd.putInt((int) count);
+			if (type == SHORT)
+				ifd.putShort((short) value).putShort((short) 0);
+			else
+				ifd.putInt((int) value);
+		}
+	}
+
+	private void write(ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining())
+			position += channel.write(buf, position);
+	}
+}
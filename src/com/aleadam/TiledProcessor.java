@@ -0,0 +1,331 @@
+package com.aleadam;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FilenameUtils;
+
+import ij.IJ;
+import ij.Macro;
+import ij.Prefs;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Runs the peak analysis on an image read from disk in bands, for images
+ * that do not fit in memory. The result is the same as
+ * {@link PeakAnalysis#analyze}, written to a 16-bit TIFF.
+ * <p>
+ * Column profiles are detected first, a vertical band of columns at a time,
+ * and their peaks are kept as one bit per pixel in a temporary file. Rows are
+ * then detected a horizontal band at a time, combined with the column peaks
+ * of the same rows, density filtered and written out. Profiles are always
+ * whole rows and columns, so detection needs no overlap between bands; the
+ * density filter reads <code>region</code> extra rows above and below each
+ * band.
+ * <p>
+ * From the command line:
+ *
+ * <pre>
+ * java -cp ij.jar:MultipleProfilePeaks.jar com.aleadam.TiledProcessor \
+ *     input.tif output.tif [peak=20] [stringency=1] [threshold=0] \
+ *     [density=1] [region=5] [filter=circle|square|none] [channel=1] \
+ *     [band=256] [threads=n]
+ * </pre>
+ */
+public class TiledProcessor {
+	private MappedImage source;
+	private PeakParameters params;
+	private long bandBytes = 256L << 20;
+	private int threads = Prefs.getThreads();
+	private ExecutorService pool;
+	private PeakStatistics peakStats, imageStats;
+
+	public TiledProcessor(MappedImage source, PeakParameters params) {
+		this.source = source;
+		this.params = params;
+	}
+
+	/**
+	 * Memory used for the profiles of one band, in megabytes.
+	 */
+	public void setBandSize(int megabytes) {
+		bandBytes = Math.max(1, megabytes) * (1L << 20);
+	}
+
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Writes the peak image to <code>output</code>. The column peaks are
+	 * kept in a temporary file next to it.
+	 */
+	public void run(File output) throws IOException {
+		int width = source.getWidth();
+		int height = source.getHeight();
+		peakStats = new PeakStatistics();
+		imageStats = new PeakStatistics();
+		pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		File maskFile = File.createTempFile("peaks", ".mask",
+				output.getAbsoluteFile().getParentFile());
+		RandomAccessFile mask = new RandomAccessFile(maskFile, "rw");
+		try {
+			// Bands of columns are a multiple of 64 wide, so each row of a
+			// band is a whole number of mask words
+			int columns = (int) Math.min(bandBytes / 4 / height, width + 63) / 64 * 64;
+			columns = Math.max(64, columns);
+			PeakStatistics columnStats = new PeakStatistics();
+			for (int x = 0; x < width; x += columns) {
+				IJ.showStatus("Column peaks " + x + "/" + width);
+				detectColumns(x, Math.min(columns, width - x), columns,
+						mask.getChannel(), columnStats);
+			}
+
+			TiffWriter writer = new TiffWriter(output, width, height);
+			// Closing after a failure would only report the missing rows,
+			// hiding its cause
+			boolean written = false;
+			try {
+				int halo = params.regionType == 2 || params.density == 1 ? 0
+						: params.region;
+				int rows = (int) Math.max(1, bandBytes / 4 / width - 2 * halo);
+				for (int y = 0; y < height; y += rows) {
+					IJ.showProgress(y, height);
+					detectRows(y, Math.min(rows, height - y), halo, columns,
+							mask.getChannel(), writer);
+				}
+				IJ.showProgress(1.0);
+				writer.close();
+				written = true;
+			} finally {
+				if (!written)
+					writer.abort();
+			}
+			peakStats.merge(columnStats);
+		} finally {
+			if (pool != null)
+				pool.shutdown();
+			mask.close();
+			maskFile.delete();
+		}
+	}
+
+	/**
+	 * Detects the peaks of <code>count</code> columns from <code>x</code> and
+	 * stores them in the mask block of the band.
+	 */
+	private void detectColumns(final int x, int count, final int bandWidth,
+			FileChannel mask, PeakStatistics columnStats) throws IOException {
+		final int height = source.getHeight();
+		final int words = bandWidth / 64;
+		final int[] values = new int[count * height];
+		long start = Metrics.start();
+		source.readColumns(x, count, params.threshold, values);
+		Metrics.stop(Metrics.Stage.EXTRACTION, start);
+		final long[] bits = new long[words * height];
+		// Work is split on 64-column boundaries, so no two threads set bits
+		// in the same word
+		PeakStatistics[] parts = forEachChunk((count + 63) / 64,
+				new ChunkTask() {
+					public void run(int from, int to, PeakStatistics stats) {
+						PeakDetector pd = AllProfilesData.DETECTORS.get();
+						int[] pos = pd.peakBuffer(height);
+						int last = Math.min(to * 64, values.length / height);
+						for (int c = from * 64; c < last; c++) {
+							int n = pd.process(values, c * height, height,
+									params.peakWidth, params.stringency, pos);
+							for (int j = 0; j < n; j++) {
+								bits[pos[j] * words + c / 64] |= 1L << (c & 63);
+								stats.add(values[c * height + pos[j]]);
+							}
+						}
+						pd.flushMetrics();
+					}
+				});
+		for (PeakStatistics part : parts)
+			columnStats.merge(part);
+		long block = (long) x / 64 * height * 8;
+		LongBuffer buf = mask.map(FileChannel.MapMode.READ_WRITE, block,
+				8L * bits.length).asLongBuffer();
+		buf.put(bits);
+	}
+
+	/**
+	 * Detects the peaks of <code>count</code> rows from <code>y</code> and of
+	 * <code>halo</code> rows around them, adds the column peaks, filters
+	 * the band and writes the <code>count</code> rows.
+	 */
+	private void detectRows(int y, int count, int halo, int bandWidth,
+			FileChannel mask, TiffWriter writer) throws IOException {
+		final int width = source.getWidth();
+		int height = source.getHeight();
+		int y0 = Math.max(0, y - halo);
+		int y1 = Math.min(height, y + count + halo);
+		final int rows = y1 - y0;
+		final int[] values = new int[rows * width];
+		long start = Metrics.start();
+		source.readRows(y0, rows, params.threshold, values);
+		Metrics.stop(Metrics.Stage.EXTRACTION, start);
+		final short[] band = new short[rows * width];
+		// Rows start on new words, so threads on different rows never share
+		// one
+		final PeakMask bandMask = new PeakMask(width, rows);
+
+		final int first = y - y0;
+		final int last = first + count;
+		PeakStatistics[] parts = forEachChunk(rows, new ChunkTask() {
+			public void run(int from, int to, PeakStatistics stats) {
+				PeakDetector pd = AllProfilesData.DETECTORS.get();
+				int[] pos = pd.peakBuffer(width);
+				for (int r = from; r < to; r++) {
+					int n = pd.process(values, r * width, width,
+							params.peakWidth, params.stringency, pos);
+					for (int j = 0; j < n; j++) {
+						int i = r * width + pos[j];
+						band[i] = AllProfilesData.clip(values[i]);
+						if (band[i] != 0)
+							bandMask.set(pos[j], r);
+						// Rows of the halo belong to the neighbouring bands
+						if (r >= first && r < last)
+							stats.add(values[i]);
+					}
+				}
+				pd.flushMetrics();
+			}
+		});
+		for (PeakStatistics part : parts)
+			peakStats.merge(part);
+
+		int words = bandWidth / 64;
+		long[] bits = new long[words * rows];
+		for (int x = 0; x < width; x += bandWidth) {
+			long block = (long) x / 64 * height * 8;
+			LongBuffer buf = mask.map(FileChannel.MapMode.READ_ONLY,
+					block + 8L * words * y0, 8L * bits.length).asLongBuffer();
+			buf.get(bits);
+			for (int r = 0; r < rows; r++) {
+				for (int w = 0; w < words; w++) {
+					long word = bits[r * words + w];
+					while (word != 0) {
+						int px = x + 64 * w + Long.numberOfTrailingZeros(word);
+						int i = r * width + px;
+						band[i] = AllProfilesData.clip(values[i]);
+						if (band[i] != 0)
+							bandMask.set(px, r);
+						word &= word - 1;
+					}
+				}
+			}
+		}
+
+		ImageProcessor ip = new ShortProcessor(width, rows, band, null);
+		short[] filtered = (short[]) PeakAnalysis.densityFilter(ip, bandMask,
+				params, threads, pool).getPixels();
+		writer.writeRows(filtered, first * width, count);
+		imageStats.addAll(filtered, first * width, count * width);
+	}
+
+	private interface ChunkTask {
+		void run(int from, int to, PeakStatistics stats);
+	}
+
+	/**
+	 * Runs the task over <code>count</code> items split into chunks, on the
+	 * pool if there is one, and returns the statistics of each chunk in
+	 * order.
+	 */
+	private PeakStatistics[] forEachChunk(int count, final ChunkTask task)
+			throws IOException {
+		int chunks = pool == null ? 1 : Math.max(1, Math.min(count, 4 * threads));
+		final PeakStatistics[] parts = new PeakStatistics[chunks];
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(chunks);
+		for (int c = 0; c < chunks; c++) {
+			final int chunk = c;
+			final int from = (int) ((long) count * c / chunks);
+			final int to = (int) ((long) count * (c + 1) / chunks);
+			parts[c] = new PeakStatistics();
+			if (pool == null) {
+				task.run(from, to, parts[c]);
+				continue;
+			}
+			futures.add(pool.submit(new Callable<Void>() {
+				public Void call() {
+					task.run(from, to, parts[chunk]);
+					return null;
+				}
+			}));
+		}
+		try {
+			for (Future<Void> f : futures)
+				f.get();
+		} catch (InterruptedException e) {
+			for (Future<Void> f : futures)
+				f.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Peak detection interrupted");
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return parts;
+	}
+
+	/**
+	 * Statistics of all detected peaks, before the density filter, as
+	 * {@link AllProfilesData#getPeakStatistics()}.
+	 */
+	public PeakStatistics getPeakStatistics() {
+		return peakStats;
+	}
+
+	/**
+	 * Statistics of the nonzero pixels of the written peak image.
+	 */
+	public PeakStatistics getImageStatistics() {
+		return imageStats;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: TiledProcessor input.tif output.tif "
+					+ PeakParameters.USAGE + " [band=256] [threads=n]");
+			System.exit(1);
+		}
+		StringBuilder options = new StringBuilder();
+		for (int i = 2; i < args.length; i++)
+			options.append(args[i]).append(' ');
+		PeakParameters params = PeakParameters.fromOptions(options.toString());
+		params.validate(Integer.MAX_VALUE);
+		File output = new File(args[1]);
+		MappedImage source = MappedImage.openTiff(new File(args[0]),
+				params.channel);
+		try {
+			TiledProcessor tiled = new TiledProcessor(source, params);
+			String band = Macro.getValue(options.toString(), "band", null);
+			if (band != null)
+				tiled.setBandSize(Integer.parseInt(band));
+			String threads = Macro.getValue(options.toString(), "threads", null);
+			if (threads != null)
+				tiled.setThreads(Integer.parseInt(threads));
+			tiled.run(output);
+			ResultWriter.saveData(tiled.getImageStatistics(), tiled
+					.getPeakStatistics().getMax(), params, new File(output
+					.getParentFile(), FilenameUtils.getBaseName(output
+					.getName()) + ".csv").getPath());
+		} finally {
+			source.close();
+		}
+		System.exit(0);
+	}
+}
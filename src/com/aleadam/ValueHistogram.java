@@ -0,0 +1,139 @@
+package com.aleadam;
+
+/**
+ * Counting histogram of non-negative integer profile values, answering rank,
+ * percentile and below-percentile mean queries in O(bins).
+ * <p>
+ * Values up to 65535 (all 8 and 16-bit images) get one bin each and answers
+ * are exact. Wider ranges, only possible from 32-bit images, are split into
+ * 65536 equal bins that also keep the sum of their values; a value is then
+ * approximated by the mean of its bin, while sums of whole bins stay exact.
+ */
+public class ValueHistogram {
+	public static final int BINS = 1 << 16;
+
+	private final long[] counts;
+	private final double[] sums;
+	private final double binWidth;
+	private final int maxValue;
+	private long total;
+
+	/**
+	 * @param maxValue
+	 *            the largest value that will be added.
+	 */
+	public ValueHistogram(int maxValue) {
+		maxValue = Math.max(0, maxValue);
+		this.maxValue = maxValue;
+		if (maxValue < BINS) {
+			counts = new long[maxValue + 1];
+			sums = null;
+			binWidth = 1;
+		} else {
+			counts = new long[BINS];
+			sums = new double[BINS];
+			binWidth = (maxValue + 1.0) / BINS;
+		}
+	}
+
+	public boolean isBinned() {
+		return sums != null;
+	}
+
+	/**
+	 * Values outside 0 to the maximum, such as those of infinite pixels, are
+	 * counted as the nearest end of the range.
+	 */
+	public void add(int value, int weight) {
+		if (value < 0)
+			value = 0;
+		else if (value > maxValue)
+			value = maxValue;
+		if (sums == null) {
+			counts[value] += weight;
+		} else {
+			int bin = Math.min(BINS - 1, (int) (value / binWidth));
+			counts[bin] += weight;
+			sums[bin] += (double) value * weight;
+		}
+		total += weight;
+	}
+
+	/**
+	 * Adds all the bins of another histogram with the same range.
+	 */
+	public void merge(ValueHistogram other) {
+		for (int i = 0; i < counts.length; i++)
+			counts[i] += other.counts[i];
+		if (sums != null) {
+			for (int i = 0; i < sums.length; i++)
+				sums[i] += other.sums[i];
+		}
+		total += other.total;
+	}
+
+	public long getCount() {
+		return total;
+	}
+
+	/**
+	 * The value at the given 0-based rank in ascending order, i.e. the same as
+	 * <code>sorted[rank]</code> on a sorted copy of all values.
+	 */
+	public int valueAtRank(long rank) {
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen > rank)
+				return binValue(i);
+		}
+		return total == 0 ? 0 : binValue(lastBin());
+	}
+
+	/**
+	 * The value below which <code>percent</code>% of the values lie (nearest
+	 * rank).
+	 */
+	public int percentile(double percent) {
+		long rank = (long) Math.ceil(percent / 100 * total) - 1;
+		return valueAtRank(Math.max(0, Math.min(total - 1, rank)));
+	}
+
+	/**
+	 * The mean of the <code>n</code> smallest values, or 0 if n is 0.
+	 */
+	public float averageOfLowest(long n) {
+		n = Math.min(n, total);
+		if (n <= 0)
+			return 0;
+		double sum = 0;
+		long left = n;
+		for (int i = 0; i < counts.length && left > 0; i++) {
+			long c = Math.min(counts[i], left);
+			if (c == counts[i])
+				sum += binSum(i);
+			else
+				sum += c * (double) binValue(i);
+			left -= c;
+		}
+		return (float) (sum / n);
+	}
+
+	private double binSum(int bin) {
+		return sums == null ? (double) bin * counts[bin] : sums[bin];
+	}
+
+	private int binValue(int bin) {
+		if (sums == null)
+			return bin;
+		return counts[bin] == 0 ? (int) (bin * binWidth)
+				: (int) (sums[bin] / counts[bin]);
+	}
+
+	private int lastBin() {
+		int i = counts.length - 1;
+		while (i > 0 && counts[i] == 0)
+			i--;
+		return i;
+	}
+}
@@ -0,0 +1,336 @@
+package com.aleadam;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FilenameUtils;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Macro;
+import ij.Prefs;
+import ij.process.ImageProcessor;
+
+/**
+ * Processes the images of a directory as they are written, e.g. by a
+ * microscope during acquisition, appending the statistics of each one to a
+ * CSV file as soon as it is done.
+ * <p>
+ * The directory is polled, since the plugin runs on Java 6. A file is taken
+ * as complete once its size and modification time have not changed for a
+ * settle time. Complete files go to a bounded queue served by a fixed number of
+ * workers; when the queue is full the polling waits, so a slow analysis
+ * holds files back on disk instead of in memory. Each row records the
+ * latency from the file being found complete to its row being written, the
+ * time spent on the analysis and the queue depth when it was queued.
+ * <p>
+ * From the command line:
+ *
+ * <pre>
+ * java -cp ij.jar:MultipleProfilePeaks.jar com.aleadam.WatchProcessor \
+ *     inputDir results.csv [peak=20] [stringency=1] [threshold=0] \
+ *     [density=1] [region=5] [filter=circle|square|none] [channel=1] [threads=n] \
+ *     [queue=16] [poll=500] [settle=1000] [idle=60] [images=outputDir]
+ * </pre>
+ */
+public class WatchProcessor {
+	private File inputDir, csvFile;
+	private PeakParameters params;
+	private int threads = Prefs.getThreads();
+	private int queueSize = 16;
+	private long pollMillis = 500;
+	private long settleMillis = 1000;
+	private long idleMillis;
+	private File imageDir;
+
+	private volatile boolean stopped;
+	private BufferedWriter csv;
+	private final AtomicInteger done = new AtomicInteger();
+
+	private static class Job {
+		final File file;
+		final long found;
+		final int depth;
+
+		Job(File file, long found, int depth) {
+			this.file = file;
+			this.found = found;
+			this.depth = depth;
+		}
+	}
+
+	// Tells a worker to exit
+	private static final Job END = new Job(null, 0, 0);
+
+	public WatchProcessor(File inputDir, File csvFile, PeakParameters params) {
+		this.inputDir = inputDir;
+		this.csvFile = csvFile;
+		this.params = params;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Number of complete files that may wait for a worker.
+	 */
+	public void setQueueSize(int queueSize) {
+		this.queueSize = Math.max(1, queueSize);
+	}
+
+	public void setPollInterval(long millis) {
+		this.pollMillis = Math.max(10, millis);
+	}
+
+	/**
+	 * How long a file must stay unchanged to be taken as complete. Should
+	 * exceed the longest pause of the acquisition software while writing.
+	 */
+	public void setSettleTime(long millis) {
+		this.settleMillis = Math.max(0, millis);
+	}
+
+	/**
+	 * Stops once no file has appeared or changed for this long. 0, the default,
+	 * watches until {@link #stop()}.
+	 */
+	public void setIdleTimeout(long millis) {
+		this.idleMillis = Math.max(0, millis);
+	}
+
+	/**
+	 * Also saves the 8-bit peak image of each file to this directory.
+	 */
+	public void setImageDirectory(File imageDir) {
+		this.imageDir = imageDir;
+	}
+
+	/**
+	 * Makes {@link #run()} return once the images already queued are done.
+	 * Files found complete but not queued yet are left for a later run.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Watches the directory until stopped or idle. Files already in it are
+	 * processed as well.
+	 *
+	 * @return the number of images processed successfully.
+	 */
+	public int run() throws IOException, InterruptedException {
+		if (!inputDir.isDirectory())
+			throw new IOException("Not a directory: " + inputDir);
+		if (imageDir != null && !imageDir.exists() && !imageDir.mkdirs())
+			throw new IOException("Cannot create output directory: " + imageDir);
+		// The peak images would be taken for new acquisitions
+		if (imageDir != null
+				&& imageDir.getCanonicalFile().equals(inputDir.getCanonicalFile()))
+			throw new IOException("Peak images must be saved to another directory");
+		boolean header = !csvFile.exists() || csvFile.length() == 0;
+		csv = new BufferedWriter(new FileWriter(csvFile, true));
+		if (header)
+			writeRow(ResultWriter.IMAGE_HEADER
+					+ ",Latency (ms),Processing (ms),Queue depth");
+
+		final BlockingQueue<Job> queue = new ArrayBlockingQueue<Job>(queueSize);
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			Thread t = new Thread("Peak watch worker " + (i + 1)) {
+				public void run() {
+					work(queue);
+				}
+			};
+			t.start();
+			workers.add(t);
+		}
+		IJ.log("Watching " + inputDir + " (" + params + ")");
+		try {
+			poll(queue);
+		} finally {
+			// Queued files are still processed
+			for (int i = 0; i < workers.size(); i++)
+				queue.put(END);
+			for (Thread t : workers)
+				t.join();
+			csv.close();
+		}
+		IJ.log("Processed " + done.get() + " images from " + inputDir);
+		return done.get();
+	}
+
+	/**
+	 * Queues every file whose size and modification time did not change for
+	 * the settle time, until stopped or idle.
+	 */
+	private void poll(BlockingQueue<Job> queue) throws InterruptedException {
+		Set<String> queued = new HashSet<String>();
+		// Size and modification time of each file at the previous poll, and
+		// since when they have not changed
+		Map<String, long[]> pending = new HashMap<String, long[]>();
+		// Only the results file itself, when written to the input directory,
+		// not an input file that merely shares its name
+		File skip = canonical(csvFile);
+		long lastChange = System.currentTimeMillis();
+		while (!stopped) {
+			File[] files = inputDir.listFiles();
+			if (files == null)
+				files = new File[0];
+			Arrays.sort(files);
+			for (File f : files) {
+				String name = f.getName();
+				if (!f.isFile() || f.isHidden() || queued.contains(name)
+						|| name.equals(skip.getName())
+						&& canonical(f).equals(skip))
+					continue;
+				long now = System.currentTimeMillis();
+				long[] state = { f.length(), f.lastModified(), now };
+				long[] previous = pending.get(name);
+				if (previous == null || previous[0] != state[0]
+						|| previous[1] != state[1]) {
+					pending.put(name, state);
+					lastChange = now;
+					continue;
+				}
+				if (state[0] == 0 || now - previous[2] < settleMillis)
+					continue;
+				pending.remove(name);
+				queued.add(name);
+				// Blocks while the workers are behind
+				queue.put(new Job(f, System.nanoTime(), queue.size()));
+				if (stopped)
+					return;
+			}
+			if (idleMillis > 0
+					&& System.currentTimeMillis() - lastChange > idleMillis)
+				return;
+			Thread.sleep(pollMillis);
+		}
+	}
+
+	private void work(BlockingQueue<Job> queue) {
+		while (true) {
+			Job job;
+			try {
+				job = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (job == END)
+				return;
+			// Nothing may end a worker early, or the polling would block on
+			// a full queue
+			try {
+				if (process(job))
+					done.incrementAndGet();
+			} catch (Throwable e) {
+				IJ.log("Error processing " + job.file.getName() + ": " + e);
+			}
+		}
+	}
+
+	private static File canonical(File f) {
+		try {
+			return f.getCanonicalFile();
+		} catch (IOException e) {
+			return f.getAbsoluteFile();
+		}
+	}
+
+	private boolean process(Job job) throws IOException {
+		long start = System.nanoTime();
+		ImagePlus imp = IJ.openImage(job.file.getPath());
+		if (imp == null || imp.getBitDepth() == 24) {
+			IJ.log("Skipping " + job.file.getName() + ": not a grayscale image");
+			return false;
+		}
+		int index = params.stackIndex(imp);
+		if (index == 0) {
+			IJ.log("Skipping " + job.file.getName() + ": no channel "
+					+ params.channel);
+			return false;
+		}
+		ImageProcessor ip = imp.getStack().getProcessor(index);
+		String name = FilenameUtils.getBaseName(job.file.getName())
+				+ " - channel " + params.channel;
+		PeakAnalysis result = PeakAnalysis.analyze(ip, name, params, 1);
+		PeakStatistics stats = new PeakStatistics(
+				(short[]) result.peaks.getPixels());
+		if (imageDir != null)
+			ResultWriter.saveImage(result.peaks, result.maxPeak, new File(
+					imageDir, name + ".tif").getPath());
+		long end = System.nanoTime();
+		double latency = (end - job.found) / 1e6;
+		double processing = (end - start) / 1e6;
+		writeRow(ResultWriter
+				.imageRow(job.file.getName(), params.channel, stats,
+						result.maxPeak).append(',').append(IJ.d2s(latency, 1))
+				.append(',').append(IJ.d2s(processing, 1)).append(',')
+				.append(job.depth).toString());
+		IJ.log(job.file.getName() + ": " + stats.getPeakCount()
+				+ " peaks, latency " + IJ.d2s(latency, 0) + " ms, queue depth "
+				+ job.depth);
+		return true;
+	}
+
+	/**
+	 * Appends one line and flushes it, so the file can be followed while the
+	 * acquisition runs.
+	 */
+	private synchronized void writeRow(String row) throws IOException {
+		csv.write(row);
+		csv.newLine();
+		csv.flush();
+	}
+
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		if (args.length < 2) {
+			System.err.println("Usage: WatchProcessor inputDir results.csv "
+					+ PeakParameters.USAGE + " [threads=n] [queue=16] [poll=500] [settle=1000] [idle=60] "
+					+ "[images=outputDir]");
+			System.exit(1);
+		}
+		StringBuilder options = new StringBuilder();
+		for (int i = 2; i < args.length; i++)
+			options.append(args[i]).append(' ');
+		PeakParameters params = PeakParameters.fromOptions(options.toString());
+		params.validate(Integer.MAX_VALUE);
+		WatchProcessor watch = new WatchProcessor(new File(args[0]), new File(
+				args[1]), params);
+		String threads = Macro.getValue(options.toString(), "threads", null);
+		if (threads != null)
+			watch.setThreads(Integer.parseInt(threads));
+		String queue = Macro.getValue(options.toString(), "queue", null);
+		if (queue != null)
+			watch.setQueueSize(Integer.parseInt(queue));
+		String poll = Macro.getValue(options.toString(), "poll", null);
+		if (poll != null)
+			watch.setPollInterval(Long.parseLong(poll));
+		String settle = Macro.getValue(options.toString(), "settle", null);
+		if (settle != null)
+			watch.setSettleTime(Long.parseLong(settle));
+		String idle = Macro.getValue(options.toString(), "idle", null);
+		if (idle != null)
+			watch.setIdleTimeout(1000 * Long.parseLong(idle));
+		String images = Macro.getValue(options.toString(), "images", null);
+		if (images != null)
+			watch.setImageDirectory(new File(images));
+		watch.run();
+		System.exit(0);
+	}
+}
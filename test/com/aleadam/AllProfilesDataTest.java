@@ -0,0 +1,100 @@
+package com.aleadam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+public class AllProfilesDataTest {
+
+	/**
+	 * A 32-bit image of values 0 to 999 with NaN, positive and negative
+	 * infinite pixels among them.
+	 */
+	private static float[] nonFinitePixels(int n) {
+		Random random = new Random(12);
+		float[] pixels = new float[n];
+		for (int i = 0; i < n; i++)
+			pixels[i] = random.nextInt(1000) + random.nextFloat();
+		for (int i = 0; i < n; i += 97)
+			pixels[i] = Float.NaN;
+		for (int i = 48; i < n; i += 1009)
+			pixels[i] = Float.POSITIVE_INFINITY;
+		for (int i = 512; i < n; i += 1013)
+			pixels[i] = Float.NEGATIVE_INFINITY;
+		return pixels;
+	}
+
+	/**
+	 * The profile values as the profiles read them, sorted: NaN and negative
+	 * infinity are 0, and positive infinity the largest finite value.
+	 */
+	private static int[] sortedProfileValues(float[] pixels) {
+		int max = 0;
+		for (float p : pixels) {
+			if (p != Float.POSITIVE_INFINITY && p > max)
+				max = (int) p;
+		}
+		int[] values = new int[pixels.length];
+		for (int i = 0; i < pixels.length; i++) {
+			float p = pixels[i];
+			values[i] = p == Float.POSITIVE_INFINITY ? max
+					: Float.isNaN(p) || p < 0 ? 0 : (int) p;
+		}
+		Arrays.sort(values);
+		return values;
+	}
+
+	@Test
+	public void nonFinitePixelsDoNotSetTheRange() {
+		int width = 200, height = 150;
+		float[] pixels = nonFinitePixels(width * height);
+		AllProfilesData data = new AllProfilesData(new ImagePlus("",
+				new FloatProcessor(width, height, pixels, null)), "", 20, 1, 0);
+		ValueHistogram histogram = data.getHistogram();
+		assertFalse(histogram.isBinned());
+		// Every pixel is read once along its row and once along its column
+		assertEquals(2L * pixels.length, histogram.getCount());
+
+		int[] sorted = sortedProfileValues(pixels);
+		int n = sorted.length;
+		assertEquals(sorted[n - 1], data.getPercentile(100));
+		for (int tenth = 0; tenth < 10; tenth++) {
+			int end = n * (tenth + 1) / 10;
+			assertEquals(sorted[end - 1], data.getTenth(tenth));
+			long sum = 0;
+			for (int i = 0; i < n * tenth / 10; i++)
+				sum += sorted[i];
+			float average = tenth == 0 ? 0 : (float) sum / (n * tenth / 10);
+			assertEquals(average, data.getAverageBelow(tenth), 1e-3);
+		}
+	}
+
+	@Test
+	public void onlyNaNPixels() {
+		float[] pixels = new float[64 * 64];
+		Arrays.fill(pixels, Float.NaN);
+		AllProfilesData data = new AllProfilesData(new ImagePlus("",
+				new FloatProcessor(64, 64, pixels, null)), "", 20, 1, 0);
+		assertEquals(0, data.getPercentile(100));
+		assertEquals(0, data.getAverageBelow(5), 0);
+	}
+
+	@Test
+	public void analysisOfNonFiniteImage() {
+		float[] pixels = nonFinitePixels(300 * 200);
+		ImageProcessor ip = new FloatProcessor(300, 200, pixels, null);
+		PeakParameters params = new PeakParameters();
+		params.regionType = 0;
+		PeakAnalysis result = PeakAnalysis.analyze(ip, "", params, 2);
+		assertEquals(300, result.peaks.getWidth());
+		assertEquals(result.data.getMaxPeak(), result.maxPeak);
+	}
+}
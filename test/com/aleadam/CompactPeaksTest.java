@@ -0,0 +1,128 @@
+package com.aleadam;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Compares the compact layout with the peaks of each profile kept in its
+ * own array, as <code>int[][]</code> lists did before.
+ */
+public class CompactPeaksTest {
+
+	private static void assertProfile(String at, CompactPeaks peaks,
+			int profile, int[] positions, int[] values) {
+		assertEquals(at, positions.length, peaks.end(profile)
+				- peaks.start(profile));
+		for (int j = 0; j < positions.length; j++) {
+			int k = peaks.start(profile) + j;
+			assertEquals(at, positions[j], peaks.getPosition(k));
+			assertEquals(at, values[j], peaks.getValue(k));
+		}
+	}
+
+	@Test
+	public void assembleMatchesLists() {
+		Random random = new Random(10);
+		for (int trial = 0; trial < 200; trial++) {
+			int profiles = 1 + random.nextInt(40);
+			boolean shortValues = trial % 2 == 0;
+			int[][] positions = new int[profiles][];
+			int[][] values = new int[profiles][];
+			for (int i = 0; i < profiles; i++) {
+				// Many profiles without peaks, some with more than a chunk holds
+				int n = random.nextInt(3) == 0 ? 0 : random.nextInt(100);
+				positions[i] = new int[n];
+				values[i] = new int[n];
+				for (int j = 0; j < n; j++) {
+					positions[i][j] = j * 3 + random.nextInt(3);
+					values[i][j] = shortValues ? random.nextInt(65536)
+							: random.nextInt(Integer.MAX_VALUE);
+				}
+			}
+			// Chunks of random sizes, some empty, as the workers fill them
+			int chunkCount = 1 + random.nextInt(profiles);
+			CompactPeaks.Chunk[] chunks = new CompactPeaks.Chunk[chunkCount];
+			for (int c = 0; c < chunkCount; c++) {
+				int from = profiles * c / chunkCount;
+				int to = profiles * (c + 1) / chunkCount;
+				chunks[c] = new CompactPeaks.Chunk(from, to);
+				for (int i = from; i < to; i++) {
+					int n = positions[i].length;
+					int[] data = new int[3 * 100 + 3];
+					for (int j = 0; j < n; j++)
+						data[positions[i][j]] = values[i][j];
+					chunks[c].add(i, positions[i], n, data, 0, new float[data.length],
+							0, 0, 1);
+				}
+			}
+			CompactPeaks peaks = CompactPeaks.assemble(profiles, chunks,
+					shortValues);
+			assertEquals(profiles, peaks.getProfileCount());
+			int total = 0;
+			for (int i = 0; i < profiles; i++) {
+				assertProfile("trial " + trial + ", profile " + i, peaks, i,
+						positions[i], values[i]);
+				total += positions[i].length;
+			}
+			assertEquals(total, peaks.size());
+		}
+	}
+
+	/**
+	 * Profile i of the image as {@link AllProfilesData} numbers them: the
+	 * rows, then the columns.
+	 */
+	private static int[] profile(ImageProcessor ip, int i) {
+		int width = ip.getWidth(), height = ip.getHeight();
+		int[] T = new int[i < height ? width : height];
+		for (int j = 0; j < T.length; j++)
+			T[j] = i < height ? ip.get(j, i) : ip.get(i - height, j);
+		return T;
+	}
+
+	private static void assertDetection(ImageProcessor ip, int threads,
+			boolean retain) {
+		int peakWidth = 4;
+		float stringency = 0.5f;
+		AllProfilesData data = new AllProfilesData(new ImagePlus("", ip), "",
+				peakWidth, stringency, 0, retain);
+		data.setThreads(threads);
+		data.process();
+		CompactPeaks peaks = data.getPeaks();
+		assertEquals(ip.getWidth() + ip.getHeight(), peaks.getProfileCount());
+		for (int i = 0; i < peaks.getProfileCount(); i++) {
+			int[] T = profile(ip, i);
+			int[] positions = new PeakDetector(T).process(peakWidth, stringency);
+			int[] values = new int[positions.length];
+			for (int j = 0; j < positions.length; j++)
+				values[j] = T[positions[j]];
+			assertProfile(ip.getBitDepth() + " bits, " + threads
+					+ " threads, profile " + i, peaks, i, positions, values);
+		}
+	}
+
+	@Test
+	public void detectionMatchesPerProfileLists() {
+		Random random = new Random(11);
+		ImageProcessor shorts = new ShortProcessor(150, 90);
+		ImageProcessor bytes = new ByteProcessor(70, 130);
+		for (ImageProcessor ip : new ImageProcessor[] { shorts, bytes }) {
+			int max = ip.getBitDepth() == 8 ? 256 : 65536;
+			for (int i = 0; i < ip.getPixelCount(); i++)
+				ip.set(i, random.nextInt(max));
+			for (int threads : new int[] { 1, 3 }) {
+				assertDetection(ip, threads, true);
+				assertDetection(ip, threads, false);
+			}
+		}
+	}
+}
@@ -0,0 +1,310 @@
+package com.aleadam;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import ij.gui.OvalRoi;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Compares the density filters with the original per-pixel filters of the
+ * plugin, and with the summed-area table and prefix sum filters that came
+ * before the {@link PeakMask}, on random peak images.
+ */
+public class DensityFilterTest {
+
+	/**
+	 * A peak image with about <code>percent</code>% nonzero pixels.
+	 */
+	static ImageProcessor peaks(Random random, int width, int height,
+			int percent) {
+		ImageProcessor ip = new ShortProcessor(width, height);
+		short[] pixels = (short[]) ip.getPixels();
+		for (int i = 0; i < pixels.length; i++) {
+			if (random.nextInt(100) < percent)
+				pixels[i] = (short) (1 + random.nextInt(65535));
+		}
+		return ip;
+	}
+
+	/**
+	 * The original square filter, counting every pixel of the window.
+	 */
+	private static ImageProcessor originalSquare(ImageProcessor ip, int region,
+			int density) {
+		if (density == 1)
+			return ip;
+		ImageProcessor ip2 = new ShortProcessor(ip.getWidth(), ip.getHeight());
+		for (int i = region; i < ip.getWidth() - region; i++) {
+			for (int j = region; j < ip.getHeight() - region; j++) {
+				int count = 0;
+				for (int k = -region; k < region; k++) {
+					for (int l = -region; l < region; l++) {
+						if (ip.getPixel(i + k, j + l) > 0)
+							count++;
+					}
+				}
+				if (count >= density)
+					ip2.putPixel(i, j, ip.getPixel(i, j));
+			}
+		}
+		return ip2;
+	}
+
+	/**
+	 * The original circle filter, moving an {@link OvalRoi} over the image
+	 * and counting the peaks under its mask. It skips the border, where the
+	 * disk leaves the image.
+	 */
+	private static ImageProcessor originalCircle(ImageProcessor ip,
+			int region, int density) {
+		ImageProcessor tmpIP = ip.duplicate();
+		ImageProcessor ip2 = new ShortProcessor(ip.getWidth(), ip.getHeight());
+		int radius = region;
+		OvalRoi roi = new OvalRoi(0, 0, 2 * radius, 2 * radius);
+		tmpIP.setRoi(roi);
+		if (density == 1)
+			return ip;
+		for (int i = 0; i < ip.getWidth() - 2 * radius; i++) {
+			for (int j = 0; j < ip.getHeight() - 2 * radius; j++) {
+				roi.setLocation(i, j);
+				ImageProcessor mask = tmpIP.getMask();
+				int count = 0;
+				for (int k = 0; k < 2 * radius; k++) {
+					for (int l = 0; l < 2 * radius; l++) {
+						if (mask.getPixel(k, l) > 0
+								&& ip.getPixel(i + k, j + l) > 0)
+							count++;
+					}
+				}
+				if (count >= density)
+					ip2.putPixel(i + radius, j + radius,
+							ip.getPixel(i + radius, j + radius));
+			}
+		}
+		return ip2;
+	}
+
+	/**
+	 * Whether the circle filter keeps (x, y), counting the peaks under the
+	 * {@link OvalRoi} mask that lie inside the image.
+	 */
+	private static boolean keptByDisk(ImageProcessor ip, ImageProcessor disk,
+			int radius, int density, int x, int y) {
+		int count = 0;
+		for (int l = 0; l < 2 * radius; l++) {
+			for (int k = 0; k < 2 * radius; k++) {
+				int px = x - radius + k, py = y - radius + l;
+				if (disk.getPixel(k, l) > 0 && px >= 0 && py >= 0
+						&& px < ip.getWidth() && py < ip.getHeight()
+						&& ip.getPixel(px, py) > 0)
+					count++;
+			}
+		}
+		return count >= density;
+	}
+
+	/**
+	 * The square filter on a summed-area table of the peaks.
+	 */
+	private static ImageProcessor tableSquare(ImageProcessor ip, int region,
+			int density) {
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		short[] src = (short[]) ip.getPixels();
+		ImageProcessor ip2 = new ShortProcessor(width, height);
+		short[] dst = (short[]) ip2.getPixels();
+		int w1 = width + 1;
+		int[] sat = new int[w1 * (height + 1)];
+		for (int y = 0; y < height; y++) {
+			int rowSum = 0;
+			for (int x = 0; x < width; x++) {
+				if (src[y * width + x] != 0)
+					rowSum++;
+				sat[(y + 1) * w1 + x + 1] = sat[y * w1 + x + 1] + rowSum;
+			}
+		}
+		for (int y = region; y < height - region; y++) {
+			int top = (y - region) * w1;
+			int bottom = (y + region) * w1;
+			for (int x = region; x < width - region; x++) {
+				int count = sat[bottom + x + region] - sat[top + x + region]
+						- sat[bottom + x - region] + sat[top + x - region];
+				if (count >= density)
+					dst[y * width + x] = src[y * width + x];
+			}
+		}
+		return ip2;
+	}
+
+	/**
+	 * The circle filter on row prefix sums of the peaks, one span of the
+	 * disk per kernel row.
+	 */
+	private static ImageProcessor prefixCircle(ImageProcessor ip, int region,
+			int density) {
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		short[] src = (short[]) ip.getPixels();
+		ImageProcessor ip2 = new ShortProcessor(width, height);
+		short[] dst = (short[]) ip2.getPixels();
+		int radius = region;
+		int size = 2 * radius;
+		int[] spanStart = new int[size];
+		int[] spanEnd = new int[size];
+		DensityFilter.diskSpans(radius, spanStart, spanEnd);
+		int w1 = width + 1;
+		int[] prefix = new int[w1 * height];
+		for (int y = 0; y < height; y++) {
+			int rowSum = 0;
+			for (int x = 0; x < width; x++) {
+				if (src[y * width + x] != 0)
+					rowSum++;
+				prefix[y * w1 + x + 1] = rowSum;
+			}
+		}
+		for (int y = 0; y < height; y++) {
+			int lFrom = Math.max(0, radius - y);
+			int lTo = Math.min(size, height - y + radius);
+			for (int x = 0; x < width; x++) {
+				int count = 0;
+				for (int l = lFrom; l < lTo; l++) {
+					int row = (y - radius + l) * w1;
+					int x0 = Math.max(0, Math.min(width, x - radius + spanStart[l]));
+					int x1 = Math.max(0, Math.min(width, x - radius + spanEnd[l]));
+					count += prefix[row + x1] - prefix[row + x0];
+				}
+				if (count >= density)
+					dst[y * width + x] = src[y * width + x];
+			}
+		}
+		return ip2;
+	}
+
+	private static short[] pixels(ImageProcessor ip) {
+		return (short[]) ip.getPixels();
+	}
+
+	@Test
+	public void squareMatchesOriginal() {
+		Random random = new Random(7);
+		for (int trial = 0; trial < 60; trial++) {
+			int width = 1 + random.nextInt(90), height = 1 + random.nextInt(90);
+			ImageProcessor ip = peaks(random, width, height, 2 + trial % 25);
+			for (int region = 1; region <= 6; region++) {
+				for (int density : new int[] { 2, 3, region * region,
+						4 * region * region }) {
+					String at = width + "x" + height + ", region " + region
+							+ ", density " + density;
+					assertArrayEquals(at, pixels(originalSquare(ip, region,
+							density)), pixels(DensityFilter.square(ip, region,
+							density)));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void diskSpansMatchOvalMask() {
+		for (int radius = 1; radius <= 25; radius++) {
+			int size = 2 * radius;
+			int[] start = new int[size], end = new int[size];
+			DensityFilter.diskSpans(radius, start, end);
+			ImageProcessor mask = new OvalRoi(0, 0, size, size).getMask();
+			for (int l = 0; l < size; l++) {
+				for (int k = 0; k < size; k++)
+					assertEquals("radius " + radius + " at " + k + "," + l,
+							mask.getPixel(k, l) > 0, k >= start[l] && k < end[l]);
+			}
+		}
+	}
+
+	@Test
+	public void circleMatchesOriginal() {
+		Random random = new Random(9);
+		for (int trial = 0; trial < 40; trial++) {
+			int width = 1 + random.nextInt(70), height = 1 + random.nextInt(70);
+			ImageProcessor ip = peaks(random, width, height, 2 + trial % 25);
+			for (int region = 1; region <= 6; region++) {
+				ImageProcessor disk = new OvalRoi(0, 0, 2 * region, 2 * region)
+						.getMask();
+				for (int density : new int[] { 2, 3, region * region,
+						4 * region * region }) {
+					String at = width + "x" + height + ", region " + region
+							+ ", density " + density;
+					ImageProcessor original = originalCircle(ip, region, density);
+					ImageProcessor filtered = DensityFilter.circle(ip, region,
+							density);
+					for (int y = 0; y < height; y++) {
+						for (int x = 0; x < width; x++) {
+							// The original only covers where the disk fits
+							boolean interior = x >= region && y >= region
+									&& x < width - region && y < height - region;
+							int expected = interior ? original.getPixel(x, y)
+									: keptByDisk(ip, disk, region, density, x, y)
+											? ip.getPixel(x, y) : 0;
+							assertEquals(at + " at " + x + "," + y, expected,
+									filtered.getPixel(x, y));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void maskFiltersMatchTableFilters() {
+		// Filters with 3 threads share this pool, the others make their own
+		ExecutorService pool = Executors.newFixedThreadPool(3);
+		try {
+			maskFiltersMatchTableFilters(pool);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private void maskFiltersMatchTableFilters(ExecutorService pool) {
+		Random random = new Random(15);
+		// Widths around multiples of 64, where mask rows change words
+		int[] widths = { 1, 17, 63, 64, 65, 128, 129, 150 };
+		for (int trial = 0; trial < 48; trial++) {
+			int width = widths[trial % widths.length];
+			int height = 1 + random.nextInt(100);
+			ImageProcessor ip = peaks(random, width, height, 1 + trial % 30);
+			PeakMask mask = PeakMask.of(ip);
+			for (int region : new int[] { 1, 2, 5, 10, 20 }) {
+				for (int density : new int[] { 2, 3, 10, 50 }) {
+					short[] square = pixels(tableSquare(ip, region, density));
+					short[] circle = pixels(prefixCircle(ip, region, density));
+					for (int threads : new int[] { 1, 3, 4 }) {
+						ExecutorService executor = threads == 3 ? pool : null;
+						String at = width + "x" + height + ", region " + region
+								+ ", density " + density + ", " + threads
+								+ " threads";
+						assertArrayEquals("square, " + at, square,
+								pixels(DensityFilter.square(ip, mask, region,
+										density, threads, executor)));
+						assertArrayEquals("circle, " + at, circle,
+								pixels(DensityFilter.circle(ip, mask, region,
+										density, threads, executor)));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void densityOneKeepsEverything() {
+		ImageProcessor ip = peaks(new Random(8), 20, 20, 10);
+		assertSame(ip, DensityFilter.square(ip, 3, 1));
+		assertSame(ip, DensityFilter.circle(ip, 3, 1));
+	}
+}
@@ -0,0 +1,177 @@
+package com.aleadam;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Compares the three spikiness implementations, the original nested loop,
+ * the monotonic deque and the blocked minima of {@link Kernels}, on random
+ * series with many ties, and the peaks each of them gives. The reusable
+ * detector is compared with the original allocating one.
+ */
+public class PeakDetectorTest {
+	private final boolean vectorized = Kernels.isVectorized();
+
+	@After
+	public void restoreKernels() {
+		Kernels.setVectorized(vectorized);
+	}
+
+	private static int[] series(Random random, int length, int range) {
+		int[] T = new int[length];
+		for (int i = 0; i < length; i++)
+			T[i] = random.nextInt(range);
+		return T;
+	}
+
+	private static float[] spikiness(int[] T, int windowSize,
+			boolean slidingWindow, boolean blocked) {
+		Kernels.setVectorized(blocked);
+		PeakDetector pd = new PeakDetector(T);
+		pd.setSlidingWindow(slidingWindow);
+		return pd.spikiness(windowSize);
+	}
+
+	private static int[] peaks(int[] T, int windowSize, float stringency,
+			boolean slidingWindow, boolean blocked) {
+		Kernels.setVectorized(blocked);
+		PeakDetector pd = new PeakDetector(T);
+		pd.setSlidingWindow(slidingWindow);
+		return pd.process(windowSize, stringency);
+	}
+
+	@Test
+	public void spikinessMatchesNaive() {
+		Random random = new Random(3);
+		for (int length = 1; length < 120; length++) {
+			for (int range : new int[] { 3, 1000 }) {
+				int[] T = series(random, length, range);
+				for (int w = 1; w <= length + 1; w++) {
+					float[] naive = spikiness(T, w, false, false);
+					String at = "length " + length + ", window " + w;
+					assertArrayEquals("deque, " + at, naive,
+							spikiness(T, w, true, false), 0);
+					assertArrayEquals("blocked, " + at, naive,
+							spikiness(T, w, true, true), 0);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void peaksMatchNaive() {
+		Random random = new Random(4);
+		for (int trial = 0; trial < 300; trial++) {
+			int length = 20 + random.nextInt(400);
+			int[] T = series(random, length, trial % 2 == 0 ? 8 : 65536);
+			int w = 1 + random.nextInt(Math.min(100, length / 2));
+			float stringency = 0.05f + 4 * random.nextFloat();
+			int[] naive = peaks(T, w, stringency, false, false);
+			assertArrayEquals(peaks(T, w, stringency, true, false), naive);
+			assertArrayEquals(peaks(T, w, stringency, true, true), naive);
+		}
+	}
+
+	/**
+	 * The original detector, which pruned close peaks with
+	 * ArrayList.removeAll.
+	 */
+	private static int[] originalProcess(int[] T, int windowSize,
+			float stringency) {
+		float[] S = new float[T.length];
+		float maxLeft, maxRight;
+		for (int i = windowSize; i < S.length - windowSize; i++) {
+			maxLeft = T[i] - T[i - 1];
+			maxRight = T[i] - T[i + 1];
+			for (int j = 2; j <= windowSize; j++) {
+				if (T[i] - T[i - j] > maxLeft)
+					maxLeft = T[i] - T[i - j];
+				if (T[i] - T[i + j] > maxRight)
+					maxRight = T[i] - T[i + j];
+			}
+			S[i] = 0.5f * (maxRight + maxLeft);
+		}
+
+		float mean = 0;
+		int n = 0;
+		float M2 = 0;
+		float delta;
+		for (int i = 0; i < S.length; i++) {
+			n = n + 1;
+			delta = S[i] - mean;
+			mean = mean + delta / n;
+			M2 = M2 + delta * (S[i] - mean);
+		}
+		float variance = M2 / (n - 1);
+		float std = (float) Math.sqrt(variance);
+
+		ArrayList<Integer> peakLocations = new ArrayList<Integer>();
+		for (int i = 0; i < S.length; i++) {
+			if (S[i] > 0 && (S[i] - mean) > stringency * std)
+				peakLocations.add(i);
+		}
+		ArrayList<Integer> toPrune = new ArrayList<Integer>();
+		for (int i = 0; i < peakLocations.size() - 1; i++) {
+			int peak1 = peakLocations.get(i);
+			int peak2 = peakLocations.get(i + 1);
+			if (peak2 - peak1 < windowSize)
+				toPrune.add(T[peak2] > T[peak1] ? peak1 : peak2);
+		}
+		peakLocations.removeAll(toPrune);
+
+		int[] peakArray = new int[peakLocations.size()];
+		for (int i = 0; i < peakArray.length; i++)
+			peakArray[i] = peakLocations.get(i);
+		return peakArray;
+	}
+
+	@Test
+	public void reusedDetectorMatchesOriginal() {
+		Random random = new Random(6);
+		// One detector for all series, as each worker thread keeps one
+		PeakDetector pd = new PeakDetector();
+		for (int trial = 0; trial < 500; trial++) {
+			int length = 10 + random.nextInt(trial % 3 == 0 ? 50 : 600);
+			int offset = random.nextInt(20);
+			int[] data = series(random, offset + length + 5,
+					trial % 2 == 0 ? 4 : 65536);
+			int[] T = Arrays.copyOfRange(data, offset, offset + length);
+			// Low stringencies give many close candidates to prune
+			float stringency = 0.05f + 2 * random.nextFloat();
+			for (int w : new int[] { 1, 2, 3, 10, length / 3 }) {
+				if (w < 1)
+					continue;
+				int[] pos = pd.peakBuffer(length);
+				int n = pd.process(data, offset, length, w, stringency, pos);
+				assertArrayEquals("trial " + trial + ", window " + w,
+						originalProcess(T, w, stringency), Arrays.copyOf(pos, n));
+			}
+		}
+	}
+
+	@Test
+	public void slidingMinMatchesNaive() {
+		Random random = new Random(5);
+		int n = 150, o = 7;
+		int[] T = series(random, n + o, 50);
+		int[] forward = new int[n], backward = new int[n], window = new int[n];
+		for (int w = 1; w <= n; w++) {
+			Kernels.slidingMin(T, o, n, w, forward, backward, window);
+			int[] expected = new int[n - w + 1];
+			for (int j = 0; j < expected.length; j++) {
+				int min = Integer.MAX_VALUE;
+				for (int k = j; k < j + w; k++)
+					min = Math.min(min, T[o + k]);
+				expected[j] = min;
+			}
+			assertArrayEquals("window " + w, expected,
+					Arrays.copyOf(window, expected.length));
+		}
+	}
+}
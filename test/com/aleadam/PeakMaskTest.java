@@ -0,0 +1,77 @@
+package com.aleadam;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+public class PeakMaskTest {
+
+	@Test
+	public void countMatchesBitsAtWordBoundaries() {
+		Random random = new Random(12);
+		for (int width : new int[] { 1, 63, 64, 65, 127, 128, 129, 200, 256 }) {
+			int height = 3;
+			ImageProcessor ip = DensityFilterTest.peaks(random, width, height,
+					50);
+			PeakMask mask = PeakMask.of(ip);
+			for (int y = 0; y < height; y++) {
+				// Every segment, so x0 and x1 fall on and next to each
+				// multiple of 64
+				for (int x0 = 0; x0 <= width; x0++) {
+					int expected = 0;
+					for (int x1 = x0; x1 <= width; x1++) {
+						assertEquals("width " + width + ", " + x0 + " to " + x1,
+								expected, mask.count(y, x0, x1));
+						if (x1 < width && ip.get(x1, y) != 0)
+							expected++;
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void fullWordsAndTotal() {
+		PeakMask mask = new PeakMask(192, 2);
+		for (int x = 0; x < 192; x++)
+			mask.set(x, 1);
+		assertEquals(0, mask.count(0, 0, 192));
+		assertEquals(192, mask.count(1, 0, 192));
+		assertEquals(64, mask.count(1, 64, 128));
+		assertEquals(1, mask.count(1, 63, 64));
+		assertEquals(1, mask.count(1, 64, 65));
+		assertEquals(0, mask.count(1, 64, 64));
+		assertEquals(192, mask.count());
+	}
+
+	@Test
+	public void setAndGetMatchPixels() {
+		ImageProcessor ip = DensityFilterTest.peaks(new Random(13), 130, 7, 30);
+		PeakMask mask = PeakMask.of(ip);
+		PeakMask set = new PeakMask(130, 7);
+		for (int y = 0; y < 7; y++) {
+			for (int x = 0; x < 130; x++) {
+				assertEquals(ip.get(x, y) != 0, mask.get(x, y));
+				if (ip.get(x, y) != 0)
+					set.set(x, y);
+			}
+		}
+		assertArrayEquals(mask.bits, set.bits);
+	}
+
+	@Test
+	public void detectionMaskMatchesPeakImage() {
+		ImageProcessor ip = DensityFilterTest.peaks(new Random(14), 150, 100,
+				100);
+		AllProfilesData data = new AllProfilesData(new ImagePlus("", ip), "",
+				5, 0.5f, 0);
+		ImageProcessor peaks = data.process();
+		assertArrayEquals(PeakMask.of(peaks).bits, data.getMask().bits);
+	}
+}
@@ -0,0 +1,65 @@
+package com.aleadam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+public class PeakParametersTest {
+
+	private static ImagePlus stack(int channels, int slices, int frames) {
+		ImageStack stack = new ImageStack(4, 3);
+		for (int i = 0; i < channels * slices * frames; i++)
+			stack.addSlice(null, new short[4 * 3]);
+		ImagePlus imp = new ImagePlus("stack", stack);
+		imp.setDimensions(channels, slices, frames);
+		return imp;
+	}
+
+	@Test
+	public void stackIndexFollowsChannelAndPosition() {
+		ImagePlus imp = stack(2, 3, 2);
+		imp.setPosition(1, 2, 2);
+		PeakParameters p = new PeakParameters();
+		p.channel = 2;
+		assertEquals(imp.getStackIndex(2, 2, 2), p.stackIndex(imp));
+		imp.setPosition(1, 1, 1);
+		assertEquals(2, p.stackIndex(imp));
+		p.channel = 3;
+		assertEquals(0, p.stackIndex(imp));
+	}
+
+	@Test
+	public void slicesAreNotChannels() {
+		ImagePlus imp = stack(1, 3, 1);
+		imp.setPosition(1, 3, 1);
+		PeakParameters p = new PeakParameters();
+		assertEquals(3, p.stackIndex(imp));
+		p.channel = 2;
+		assertEquals(0, p.stackIndex(imp));
+	}
+
+	@Test
+	public void equalsComparesEverySetting() {
+		PeakParameters p = PeakParameters.fromOptions("peak=15 stringency=2.5 "
+				+ "threshold=7 density=4 region=3 filter=circle channel=2");
+		PeakParameters q = p.copy();
+		assertEquals(p, q);
+		assertEquals(p.hashCode(), q.hashCode());
+		PeakParameters[] changed = new PeakParameters[7];
+		for (int i = 0; i < changed.length; i++)
+			changed[i] = p.copy();
+		changed[0].peakWidth++;
+		changed[1].stringency += 0.1F;
+		changed[2].threshold++;
+		changed[3].density++;
+		changed[4].region++;
+		changed[5].regionType = 1;
+		changed[6].channel = 1;
+		for (PeakParameters c : changed)
+			assertFalse(c.toOptions(), p.equals(c));
+	}
+}
@@ -0,0 +1,66 @@
+package com.aleadam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ValueHistogramTest {
+
+	@Test
+	public void exactBelowBins() {
+		ValueHistogram h = new ValueHistogram(100);
+		assertFalse(h.isBinned());
+		for (int v = 1; v <= 100; v++)
+			h.add(v, 1);
+		assertEquals(100, h.getCount());
+		assertEquals(1, h.valueAtRank(0));
+		assertEquals(50, h.percentile(50));
+		assertEquals(100, h.percentile(100));
+		assertEquals(5.5f, h.averageOfLowest(10), 0);
+	}
+
+	@Test
+	public void outOfRangeValuesCountAsTheEnds() {
+		ValueHistogram h = new ValueHistogram(10);
+		h.add(-3, 1);
+		h.add(Integer.MIN_VALUE, 1);
+		h.add(5, 1);
+		// What (int) gives for an infinite float pixel
+		h.add(Integer.MAX_VALUE, 2);
+		assertEquals(5, h.getCount());
+		assertEquals(0, h.valueAtRank(1));
+		assertEquals(5, h.valueAtRank(2));
+		assertEquals(10, h.valueAtRank(4));
+		assertEquals(5 / 3f, h.averageOfLowest(3), 1e-6);
+	}
+
+	@Test
+	public void binnedSumsStayExact() {
+		int max = 1 << 20;
+		ValueHistogram h = new ValueHistogram(max);
+		assertTrue(h.isBinned());
+		long sum = 0;
+		for (int v = 0; v <= max; v += 7) {
+			h.add(v, 1);
+			sum += v;
+		}
+		h.add(Integer.MAX_VALUE, 1);
+		sum += max;
+		assertEquals((double) sum / h.getCount(),
+				h.averageOfLowest(h.getCount()), 1e-3 * max);
+		assertEquals(max, h.percentile(100), max / ValueHistogram.BINS);
+	}
+
+	@Test
+	public void mergeAddsCounts() {
+		ValueHistogram a = new ValueHistogram(10), b = new ValueHistogram(10);
+		a.add(1, 3);
+		b.add(9, 1);
+		a.merge(b);
+		assertEquals(4, a.getCount());
+		assertEquals(1, a.percentile(75));
+		assertEquals(9, a.percentile(100));
+	}
+}